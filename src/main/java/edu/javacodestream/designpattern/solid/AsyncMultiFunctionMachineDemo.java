@@ -0,0 +1,224 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MultiFunctionMachine is composed out of a Printer and an IScanner, but it forwards each call
+ * synchronously, so a caller waits for the whole device operation and printing and scanning
+ * never overlap.
+ *
+ * AsyncMultiFunctionMachine keeps the same composition (and still is a MultiFunctionDevice),
+ * but puts every capability behind its own bounded queue and worker thread:
+ * - submitPrint / submitScan return a CompletableFuture that completes when the device is done
+ * - when a device falls behind and its queue is full, submit blocks the caller (backpressure)
+ *   instead of buffering an unbounded number of documents
+ * - print and scan jobs run in parallel, since each capability has its own worker
+ */
+
+// one device call, so printers and scanners can share the same worker / scheduling code
+interface DeviceOperation<D>
+{
+    void apply(D device, Document document) throws Exception;
+}
+
+// Single worker thread draining a bounded job queue into one device.
+// A submitter waits for a free slot outside the lock, then checks for close and enqueues under it,
+// so a job is either accepted before close() or rejected; jobs still queued when the worker stops
+// (closed or interrupted) are completed exceptionally instead of being left hanging.
+class DeviceWorker<D> implements AutoCloseable
+{
+    private static final class Job
+    {
+        final Document document;
+        final CompletableFuture<Document> done = new CompletableFuture<>();
+
+        Job(Document document)
+        {
+            this.document = document;
+        }
+    }
+
+    private final D device;
+    private final DeviceOperation<D> operation;
+    private final BlockingQueue<Job> queue;
+    private final Semaphore freeSlots;
+    private final Object closeLock = new Object();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public DeviceWorker(String name, D device, DeviceOperation<D> operation, int queueCapacity)
+    {
+        this.device = device;
+        this.operation = operation;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.freeSlots = new Semaphore(queueCapacity);
+        this.worker = new Thread(this::drain, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // blocks while the queue is full
+    public CompletableFuture<Document> submit(Document document) throws InterruptedException
+    {
+        if (!running)
+            throw new IllegalStateException("Device worker is closed");
+        freeSlots.acquire();
+        synchronized (closeLock) {
+            if (!running) {
+                freeSlots.release();
+                throw new IllegalStateException("Device worker is closed");
+            }
+            Job job = new Job(document);
+            queue.add(job);
+            return job.done;
+        }
+    }
+
+    public int queued()
+    {
+        return queue.size();
+    }
+
+    private void drain()
+    {
+        try {
+            while (running || !queue.isEmpty()) {
+                Job job = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (job == null)
+                    continue;
+                freeSlots.release();
+                try {
+                    operation.apply(device, job.document);
+                    job.done.complete(job.document);
+                } catch (Exception e) {
+                    job.done.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (closeLock) {
+                running = false;
+                for (Job job = queue.poll(); job != null; job = queue.poll()) {
+                    freeSlots.release();
+                    job.done.completeExceptionally(new IllegalStateException("Device worker stopped"));
+                }
+            }
+        }
+    }
+
+    // stops accepting jobs and waits for the queued ones to finish
+    @Override
+    public void close()
+    {
+        synchronized (closeLock) {
+            running = false;
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+class AsyncMultiFunctionMachine implements MultiFunctionDevice, AutoCloseable
+{
+    private final DeviceWorker<Printer> printQueue;
+    private final DeviceWorker<IScanner> scanQueue;
+
+    public AsyncMultiFunctionMachine(Printer printer, IScanner scanner, int queueCapacity)
+    {
+        this.printQueue = new DeviceWorker<>("printer", printer, Printer::Print, queueCapacity);
+        this.scanQueue = new DeviceWorker<>("scanner", scanner, IScanner::Scan, queueCapacity);
+    }
+
+    public CompletableFuture<Document> submitPrint(Document d) throws InterruptedException
+    {
+        return printQueue.submit(d);
+    }
+
+    public CompletableFuture<Document> submitScan(Document d) throws InterruptedException
+    {
+        return scanQueue.submit(d);
+    }
+
+    // the synchronous MultiFunctionDevice contract is still available
+    public void Print(Document d) throws Exception
+    {
+        await(submitPrint(d));
+    }
+
+    public void Scan(Document d) throws Exception
+    {
+        await(submitScan(d));
+    }
+
+    @Override
+    public void close()
+    {
+        printQueue.close();
+        scanQueue.close();
+    }
+
+    // waits for a submitted job, rethrowing the device's own exception
+    static void await(CompletableFuture<Document> job) throws Exception
+    {
+        try {
+            job.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+}
+
+// stand-in devices that take a while per document
+class SlowPrinter implements Printer
+{
+    public void Print(Document d) throws Exception
+    {
+        Thread.sleep(50);
+    }
+}
+
+class SlowScanner implements IScanner
+{
+    public void Scan(Document d) throws Exception
+    {
+        Thread.sleep(50);
+    }
+}
+
+public class AsyncMultiFunctionMachineDemo
+{
+    public static void main(String[] args) throws Exception
+    {
+        long start = System.nanoTime();
+        MultiFunctionMachine machine = new MultiFunctionMachine(new SlowPrinter(), new SlowScanner());
+        for (int i = 0; i < 10; i++) {
+            machine.Print(new Document());
+            machine.Scan(new Document());
+        }
+        System.out.println(String.format("Synchronous machine: %d ms", (System.nanoTime() - start) / 1_000_000));
+
+        start = System.nanoTime();
+        try (AsyncMultiFunctionMachine async = new AsyncMultiFunctionMachine(new SlowPrinter(), new SlowScanner(), 4)) {
+            List<CompletableFuture<Document>> jobs = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                jobs.add(async.submitPrint(new Document()));
+                jobs.add(async.submitScan(new Document()));
+            }
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+        }
+        System.out.println(String.format("Asynchronous machine: %d ms", (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,255 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RelationshipsAfter appends to a plain ArrayList while readers stream over it, so it cannot be
+ * shared between threads. ConcurrentRelationshipStore is a RelationshipBrowser tuned for a
+ * read-mostly workload (~1000 reads per write):
+ *
+ * - readers never lock: they read one volatile Snapshot, which is an immutable
+ *   IndexedRelationships plus the first deltaSize entries of the write delta
+ * - writers append to the delta under a small lock and publish a new Snapshot with the larger size;
+ *   entries below a published size are never modified, so old snapshots stay valid
+ * - a background merger folds the delta into a new IndexedRelationships, either periodically or
+ *   once the delta reaches mergeThreshold, then swaps it in; writers keep going while it builds.
+ *   The merge copies the existing CSR rows in runs and splices the sorted delta in per source
+ *   row, so it costs a few array copies, not a rebuild of every edge
+ * - when opened over a RelationshipLog, every write is appended to the log first and the
+ *   initial index is rebuilt from it. The log is forced at the end of every merge, so a crash
+ *   loses at most the edges written since the last merge; force() makes them durable at once
+ */
+class ConcurrentRelationshipStore implements RelationshipBrowser, AutoCloseable
+{
+    static final int DEFAULT_MERGE_THRESHOLD = 4096;
+    static final long DEFAULT_MERGE_INTERVAL_MILLIS = 1000;
+
+    // immutable view handed to readers
+    private static final class Snapshot
+    {
+        final IndexedRelationships base;
+        final String[] deltaFrom;
+        final byte[] deltaRelationship;
+        final String[] deltaTo;
+        final int deltaSize;
+
+        Snapshot(IndexedRelationships base, String[] deltaFrom, byte[] deltaRelationship,
+                 String[] deltaTo, int deltaSize)
+        {
+            this.base = base;
+            this.deltaFrom = deltaFrom;
+            this.deltaRelationship = deltaRelationship;
+            this.deltaTo = deltaTo;
+            this.deltaSize = deltaSize;
+        }
+    }
+
+    private final Object writeLock = new Object();
+    private final Object mergeLock = new Object();
+    private final int mergeThreshold;
+    private final ScheduledExecutorService merger;
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+    private final AtomicLong merges = new AtomicLong();
+    private final RelationshipLog log;
+
+    private volatile Snapshot snapshot;
+
+    public ConcurrentRelationshipStore()
+    {
+        this(IndexedRelationships.builder().build(), DEFAULT_MERGE_THRESHOLD, DEFAULT_MERGE_INTERVAL_MILLIS);
+    }
+
+    public ConcurrentRelationshipStore(IndexedRelationships initial, int mergeThreshold, long mergeIntervalMillis)
+    {
+        this(initial, null, mergeThreshold, mergeIntervalMillis);
+    }
+
+    private ConcurrentRelationshipStore(IndexedRelationships initial, RelationshipLog log,
+                                        int mergeThreshold, long mergeIntervalMillis)
+    {
+        this.log = log;
+        this.mergeThreshold = mergeThreshold;
+        this.snapshot = new Snapshot(initial, new String[64], new byte[64], new String[64], 0);
+        this.merger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "relationship-merger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        merger.scheduleWithFixedDelay(this::merge, mergeIntervalMillis, mergeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // a store persisted in an append-only log; existing edges are replayed from the mapped file
+    public static ConcurrentRelationshipStore open(Path logFile)
+    {
+        IndexedRelationships.Builder builder = IndexedRelationships.builder();
+        RelationshipLog log = RelationshipLog.open(logFile, builder);
+        return new ConcurrentRelationshipStore(builder.build(), log,
+                DEFAULT_MERGE_THRESHOLD, DEFAULT_MERGE_INTERVAL_MILLIS);
+    }
+
+    public void addParentAndChild(Person parent, Person child)
+    {
+        addParentAndChild(parent.name, child.name);
+    }
+
+    public void addParentAndChild(String parent, String child)
+    {
+        int deltaSize;
+        synchronized (writeLock) {
+            if (log != null)
+                log.addParentAndChild(parent, child);
+            Snapshot current = snapshot;
+            Snapshot next = append(current, parent, Relationship.PARENT, child, current.deltaSize);
+            next = append(next, child, Relationship.CHILD, parent, next.deltaSize);
+            snapshot = next;
+            deltaSize = next.deltaSize;
+        }
+        if (deltaSize >= mergeThreshold && mergeScheduled.compareAndSet(false, true))
+            merger.execute(this::merge);
+    }
+
+    @Override
+    public List<Person> findAllChildrenOf(String name)
+    {
+        Snapshot s = snapshot;
+        List<Person> children = s.base.findAllChildrenOf(name);
+        byte parent = (byte) Relationship.PARENT.ordinal();
+        for (int i = 0; i < s.deltaSize; i++) {
+            if (s.deltaRelationship[i] == parent && Objects.equals(s.deltaFrom[i], name)) {
+                if (!(children instanceof ArrayList))
+                    children = new ArrayList<>(children);
+                children.add(new Person(s.deltaTo[i]));
+            }
+        }
+        return children;
+    }
+
+    // the last merged index; does not include edges that are still in the delta
+    public IndexedRelationships indexed()
+    {
+        return snapshot.base;
+    }
+
+    public int pendingEdges()
+    {
+        return snapshot.deltaSize;
+    }
+
+    public long mergeCount()
+    {
+        return merges.get();
+    }
+
+    // folds the current delta into a new index; safe to call from any thread
+    public void merge()
+    {
+        mergeScheduled.set(false);
+        synchronized (mergeLock) {
+            Snapshot s = snapshot;
+            if (s.deltaSize == 0)
+                return;
+
+            IndexedRelationships merged = s.base.withEdges(s.deltaFrom, s.deltaRelationship, s.deltaTo, s.deltaSize);
+
+            synchronized (writeLock) {
+                // keep whatever was written while we were building
+                Snapshot now = snapshot;
+                int remaining = now.deltaSize - s.deltaSize;
+                int capacity = Math.max(64, remaining * 2);
+                String[] from = new String[capacity];
+                byte[] relationship = new byte[capacity];
+                String[] to = new String[capacity];
+                System.arraycopy(now.deltaFrom, s.deltaSize, from, 0, remaining);
+                System.arraycopy(now.deltaRelationship, s.deltaSize, relationship, 0, remaining);
+                System.arraycopy(now.deltaTo, s.deltaSize, to, 0, remaining);
+                snapshot = new Snapshot(merged, from, relationship, to, remaining);
+            }
+            merges.incrementAndGet();
+        }
+        force();
+    }
+
+    // makes every edge added so far durable in the log, if there is one
+    public void force()
+    {
+        if (log != null)
+            log.force();
+    }
+
+    @Override
+    public void close()
+    {
+        // a merge that is still running forces the log, so it has to finish before the log closes
+        merger.shutdown();
+        try {
+            merger.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (log != null)
+            log.close();
+    }
+
+    private static Snapshot append(Snapshot s, String from, Relationship relationship, String to, int size)
+    {
+        String[] deltaFrom = s.deltaFrom;
+        byte[] deltaRelationship = s.deltaRelationship;
+        String[] deltaTo = s.deltaTo;
+        if (size == deltaFrom.length) {
+            deltaFrom = Arrays.copyOf(deltaFrom, size * 2);
+            deltaRelationship = Arrays.copyOf(deltaRelationship, size * 2);
+            deltaTo = Arrays.copyOf(deltaTo, size * 2);
+        }
+        deltaFrom[size] = from;
+        deltaRelationship[size] = (byte) relationship.ordinal();
+        deltaTo[size] = to;
+        return new Snapshot(s.base, deltaFrom, deltaRelationship, deltaTo, size + 1);
+    }
+}
+
+public class ConcurrentRelationshipStoreDemo
+{
+    public static void main(String[] args) throws InterruptedException
+    {
+        try (ConcurrentRelationshipStore store = new ConcurrentRelationshipStore()) {
+            store.addParentAndChild("John", "Chris");
+            store.addParentAndChild("John", "Matt");
+
+            // lock-free readers while a writer keeps adding grandchildren
+            AtomicLong reads = new AtomicLong();
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++)
+                    store.addParentAndChild("Chris", "grandchild-" + i);
+            });
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                Thread reader = new Thread(() -> {
+                    while (writer.isAlive()) {
+                        store.findAllChildrenOf("John");
+                        reads.incrementAndGet();
+                    }
+                });
+                readers.add(reader);
+            }
+            writer.start();
+            readers.forEach(Thread::start);
+            writer.join();
+            for (Thread reader : readers)
+                reader.join();
+
+            new ResearchAfter(store);
+            store.merge();
+            System.out.println(String.format("Chris has %d children, %d reads, %d merges, %d edges pending",
+                    store.findAllChildrenOf("Chris").size(), reads.get(), store.mergeCount(), store.pendingEdges()));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Seeding the relationship graph row by row through addParentAndChild costs one Person and two
+ * Triplets per CSV row. CsvRelationshipLoader reads "parent,child" rows straight out of
+ * memory-mapped windows of the file:
+ * - each name is interned from its bytes into the builder's NameDictionary (no String per row)
+ * - both edge directions go into the builder's int arrays with addParentAndChild(int, int)
+ * - the CSR index is then built once from those arrays
+ *
+ * The format is deliberately simple: one "parent,child" pair per line, no quoting,
+ * optional trailing '\r', blank lines ignored. A line without exactly one comma is rejected
+ * with its byte offset; the header, when skipped, is the first non-blank line.
+ */
+class CsvRelationshipLoader
+{
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final boolean skipHeader;
+
+    public CsvRelationshipLoader()
+    {
+        this(false);
+    }
+
+    public CsvRelationshipLoader(boolean skipHeader)
+    {
+        this.skipHeader = skipHeader;
+    }
+
+    static class LoadReport
+    {
+        final long rows;
+        final long nanos;
+
+        LoadReport(long rows, long nanos)
+        {
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        public double rowsPerSecond()
+        {
+            return nanos == 0 ? 0 : rows * 1_000_000_000d / nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Loaded %d rows in %d ms (%.0f rows/s)", rows, nanos / 1_000_000, rowsPerSecond());
+        }
+    }
+
+    public LoadReport load(Path csv, IndexedRelationships.Builder builder)
+    {
+        long start = System.nanoTime();
+        long rows = 0;
+        NameDictionary names = builder.names();
+        byte[] scratch = new byte[256];
+        boolean skipNext = skipHeader;
+
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(WINDOW_SIZE, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int lineStart = 0;
+                int comma = -1;
+                int commas = 0;
+                for (int i = 0; i < length; i++) {
+                    byte b = in.get(i);
+                    if (b == ',' && commas++ == 0)
+                        comma = i;
+                    if (b == '\n' || (lastWindow && i == length - 1)) {
+                        int lineEnd = b == '\n' ? i : i + 1;
+                        if (lineEnd > lineStart && in.get(lineEnd - 1) == '\r')
+                            lineEnd--;
+                        if (lineEnd > lineStart) {
+                            if (skipNext) {
+                                skipNext = false;
+                            } else {
+                                if (commas != 1)
+                                    throw new IllegalArgumentException("Expected 'parent,child' but found "
+                                            + commas + " commas in the line at byte " + (position + lineStart));
+                                scratch = growIfNeeded(scratch, lineEnd - lineStart);
+                                addRow(in, lineStart, comma, lineEnd, names, builder, scratch);
+                                rows++;
+                            }
+                        }
+                        lineStart = i + 1;
+                        comma = -1;
+                        commas = 0;
+                    }
+                }
+                if (lineStart == 0 && !lastWindow)
+                    throw new IllegalStateException("CSV line longer than " + WINDOW_SIZE + " bytes at " + position);
+                // an incomplete last line is parsed again at the start of the next window
+                position += lastWindow ? length : lineStart;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new LoadReport(rows, System.nanoTime() - start);
+    }
+
+    private static void addRow(MappedByteBuffer in, int lineStart, int comma, int lineEnd,
+                               NameDictionary names, IndexedRelationships.Builder builder, byte[] scratch)
+    {
+        int parent = intern(in, lineStart, comma, names, scratch);
+        int child = intern(in, comma + 1, lineEnd, names, scratch);
+        builder.addParentAndChild(parent, child);
+    }
+
+    private static int intern(MappedByteBuffer in, int from, int to, NameDictionary names, byte[] scratch)
+    {
+        in.position(from);
+        in.get(scratch, 0, to - from);
+        return names.intern(scratch, 0, to - from);
+    }
+
+    private static byte[] growIfNeeded(byte[] scratch, int lineLength)
+    {
+        return lineLength < scratch.length ? scratch : new byte[lineLength * 2];
+    }
+}
+
+public class CsvRelationshipLoaderDemo
+{
+    public static void main(String[] args) throws IOException
+    {
+        Path csv = Files.createTempFile("relationships", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            writer.write("parent,child\n");
+            writer.write("John,Chris\n");
+            writer.write("John,Matt\n");
+            for (int child = 1; child < 5_000_000; child++)
+                writer.write("person-" + (child - 1) / 4 + ",person-" + child + "\n");
+        }
+
+        IndexedRelationships.Builder builder = IndexedRelationships.builder();
+        System.out.println(new CsvRelationshipLoader(true).load(csv, builder));
+        new ResearchAfter(builder.build());
+        Files.delete(csv);
+    }
+}
@@ -0,0 +1,347 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MultiFunctionMachine is wired to exactly one Printer and one IScanner. Thanks to interface
+ * segregation, the composed parts can just as well be a whole pool of devices.
+ *
+ * DevicePool spreads Document jobs over many devices of the same capability:
+ * - every device gets its own DeviceWorker (bounded queue + worker thread)
+ * - a job goes to the device with the least expected outstanding work,
+ *   i.e. (jobs in flight + 1) * average latency of that device
+ * - latency is tracked per device as an exponentially weighted moving average
+ * - a device that fails maxFailures times in a row, or is much slower than the rest of the pool,
+ *   is taken out of rotation for a cool-down period; a failed job is retried on another device,
+ *   from the pool's own retry threads, since a retry may block on a full queue
+ *
+ * PooledPrinter / PooledScanner adapt a pool back to the Printer / IScanner interfaces.
+ */
+class DevicePool<D> implements AutoCloseable
+{
+    static final int DEFAULT_MAX_FAILURES = 3;
+    static final long DEFAULT_COOL_DOWN_NANOS = 5_000_000_000L;
+    // a device this many times slower than the pool median is taken out of rotation
+    static final int SLOW_FACTOR = 4;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final class Slot
+    {
+        final String name;
+        final DeviceWorker<D> worker;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicLong latencyNanos = new AtomicLong(); // EWMA, 0 until the first job
+        final AtomicLong completed = new AtomicLong();
+        final AtomicInteger timesOutOfRotation = new AtomicInteger();
+        volatile long outOfRotationUntil;
+
+        Slot(String name, D device, DeviceOperation<D> operation, int queueCapacity)
+        {
+            this.name = name;
+            this.worker = new DeviceWorker<>(name, device, (d, doc) -> {
+                long start = System.nanoTime();
+                operation.apply(d, doc);
+                recordLatency(System.nanoTime() - start);
+            }, queueCapacity);
+        }
+
+        boolean inRotation(long now)
+        {
+            return outOfRotationUntil - now <= 0;
+        }
+
+        // devices without a latency sample yet are assumed to be as fast as the pool average
+        long expectedWork(long defaultLatency)
+        {
+            long latency = latencyNanos.get();
+            return (outstanding.get() + 1L) * (latency == 0 ? defaultLatency : latency);
+        }
+
+        void recordLatency(long sample)
+        {
+            long old;
+            long updated;
+            do {
+                old = latencyNanos.get();
+                updated = old == 0 ? sample : old + (sample - old) / 8;
+            } while (!latencyNanos.compareAndSet(old, updated));
+        }
+    }
+
+    private final List<Slot> slots = new ArrayList<>();
+    private final ExecutorService retries = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "device-pool-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int maxFailures;
+    private final long coolDownNanos;
+
+    public DevicePool(List<D> devices, DeviceOperation<D> operation, int queueCapacity)
+    {
+        this(devices, operation, queueCapacity, DEFAULT_MAX_FAILURES, DEFAULT_COOL_DOWN_NANOS);
+    }
+
+    public DevicePool(List<D> devices, DeviceOperation<D> operation, int queueCapacity,
+                      int maxFailures, long coolDownNanos)
+    {
+        if (devices.isEmpty())
+            throw new IllegalArgumentException("A device pool needs at least one device");
+        this.maxFailures = maxFailures;
+        this.coolDownNanos = coolDownNanos;
+        for (int i = 0; i < devices.size(); i++)
+            slots.add(new Slot("device-" + i, devices.get(i), operation, queueCapacity));
+    }
+
+    public CompletableFuture<Document> submit(Document document) throws InterruptedException
+    {
+        CompletableFuture<Document> result = new CompletableFuture<>();
+        dispatch(document, result, null, 1);
+        return result;
+    }
+
+    // one line per device: jobs, latency and whether it is in rotation
+    public String stats()
+    {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        for (Slot slot : slots)
+            sb.append(String.format("%s: %d jobs, %.1f ms avg, %s, taken out %d time(s)%n", slot.name, slot.completed.get(),
+                    slot.latencyNanos.get() / 1_000_000d, slot.inRotation(now) ? "in rotation" : "out of rotation",
+                    slot.timesOutOfRotation.get()));
+        return sb.toString();
+    }
+
+    @Override
+    public void close()
+    {
+        for (Slot slot : slots)
+            slot.worker.close();
+        retries.shutdown();
+    }
+
+    private void dispatch(Document document, CompletableFuture<Document> result, Slot failed, int attempt)
+            throws InterruptedException
+    {
+        Slot slot = pick(failed);
+        slot.outstanding.incrementAndGet();
+        CompletableFuture<Document> job;
+        try {
+            job = slot.worker.submit(document);
+        } catch (InterruptedException | RuntimeException e) {
+            slot.outstanding.decrementAndGet();
+            throw e;
+        }
+        job.whenComplete((doc, error) -> {
+            slot.outstanding.decrementAndGet();
+            if (error == null) {
+                slot.completed.incrementAndGet();
+                slot.consecutiveFailures.set(0);
+                checkSlow(slot);
+                result.complete(doc);
+                return;
+            }
+            if (slot.consecutiveFailures.incrementAndGet() >= maxFailures)
+                takeOutOfRotation(slot);
+            if (attempt >= MAX_ATTEMPTS) {
+                result.completeExceptionally(error);
+                return;
+            }
+            // retry off the device thread, so a full queue elsewhere never blocks this worker;
+            // whatever goes wrong with the retry (a closed worker, an interrupt) fails the result
+            try {
+                retries.execute(() -> {
+                    try {
+                        dispatch(document, result, slot, attempt + 1);
+                    } catch (Throwable e) {
+                        if (e instanceof InterruptedException)
+                            Thread.currentThread().interrupt();
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    // least expected work among the devices in rotation; if none is in rotation, use any device
+    private Slot pick(Slot avoid)
+    {
+        long now = System.nanoTime();
+        long defaultLatency = averageLatency();
+        Slot best = null;
+        long bestWork = Long.MAX_VALUE;
+        Slot fallback = null;
+        long fallbackWork = Long.MAX_VALUE;
+        for (Slot slot : slots) {
+            if (slot == avoid && slots.size() > 1)
+                continue;
+            long work = slot.expectedWork(defaultLatency);
+            if (work < fallbackWork) {
+                fallback = slot;
+                fallbackWork = work;
+            }
+            if (slot.inRotation(now) && work < bestWork) {
+                best = slot;
+                bestWork = work;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    private long averageLatency()
+    {
+        long sum = 0;
+        int count = 0;
+        for (Slot slot : slots) {
+            long latency = slot.latencyNanos.get();
+            if (latency > 0) {
+                sum += latency;
+                count++;
+            }
+        }
+        return count == 0 ? 1 : sum / count;
+    }
+
+    private void checkSlow(Slot slot)
+    {
+        long now = System.nanoTime();
+        long[] latencies = slots.stream()
+                .filter(s -> s.inRotation(now) && s.latencyNanos.get() > 0)
+                .mapToLong(s -> s.latencyNanos.get())
+                .toArray();
+        if (latencies.length < 3)
+            return;
+        Arrays.sort(latencies);
+        long median = latencies[latencies.length / 2];
+        if (slot.latencyNanos.get() > median * SLOW_FACTOR)
+            takeOutOfRotation(slot);
+    }
+
+    private void takeOutOfRotation(Slot slot)
+    {
+        if (!slot.inRotation(System.nanoTime()))
+            return;
+        slot.outOfRotationUntil = System.nanoTime() + coolDownNanos;
+        slot.consecutiveFailures.set(0);
+        // start over on probation once the cool-down is over
+        slot.latencyNanos.set(0);
+        slot.timesOutOfRotation.incrementAndGet();
+    }
+}
+
+class PooledPrinter implements Printer, AutoCloseable
+{
+    private final DevicePool<Printer> pool;
+
+    public PooledPrinter(List<Printer> printers, int queueCapacity)
+    {
+        this.pool = new DevicePool<>(printers, Printer::Print, queueCapacity);
+    }
+
+    public CompletableFuture<Document> submit(Document d) throws InterruptedException
+    {
+        return pool.submit(d);
+    }
+
+    public void Print(Document d) throws Exception
+    {
+        AsyncMultiFunctionMachine.await(pool.submit(d));
+    }
+
+    public String stats()
+    {
+        return pool.stats();
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+}
+
+class PooledScanner implements IScanner, AutoCloseable
+{
+    private final DevicePool<IScanner> pool;
+
+    public PooledScanner(List<IScanner> scanners, int queueCapacity)
+    {
+        this.pool = new DevicePool<>(scanners, IScanner::Scan, queueCapacity);
+    }
+
+    public CompletableFuture<Document> submit(Document d) throws InterruptedException
+    {
+        return pool.submit(d);
+    }
+
+    public void Scan(Document d) throws Exception
+    {
+        AsyncMultiFunctionMachine.await(pool.submit(d));
+    }
+
+    public String stats()
+    {
+        return pool.stats();
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+}
+
+// stand-in printers for the demo
+class JammedPrinter implements Printer
+{
+    public void Print(Document d) throws Exception
+    {
+        throw new Exception("Paper jam");
+    }
+}
+
+class VerySlowPrinter implements Printer
+{
+    public void Print(Document d) throws Exception
+    {
+        Thread.sleep(500);
+    }
+}
+
+public class DevicePoolDemo
+{
+    public static void main(String[] args) throws Exception
+    {
+        List<Printer> printers = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            printers.add(new SlowPrinter());
+        printers.add(new JammedPrinter());
+        printers.add(new VerySlowPrinter());
+
+        long start = System.nanoTime();
+        try (PooledPrinter pooled = new PooledPrinter(printers, 8)) {
+            MultiFunctionMachine machine = new MultiFunctionMachine(pooled, new SlowScanner());
+            machine.Print(new Document());
+
+            List<CompletableFuture<Document>> jobs = new ArrayList<>();
+            for (int i = 0; i < 200; i++)
+                jobs.add(pooled.submit(new Document()));
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+
+            System.out.println(String.format("Printed %d documents in %d ms",
+                    jobs.size() + 1, (System.nanoTime() - start) / 1_000_000));
+            System.out.print(pooled.stats());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Multi-hop queries (descendants, ancestors up to depth N, siblings) on top of the CSR
+ * adjacency of IndexedRelationships, instead of calling findAllChildrenOf over and over.
+ *
+ * Every query is a frontier-based BFS:
+ * - the current and next frontier are plain int[] queues of person ids
+ * - visited people are tracked in a bitset, one bit per person id
+ * - when a frontier gets large, it is split into chunks that are expanded in parallel;
+ *   the bitset is updated with CAS so every person is claimed by exactly one chunk
+ */
+
+// Growable int[] used as a BFS queue / result list without boxing
+class IntQueue
+{
+    private int[] items;
+    private int size;
+
+    public IntQueue()
+    {
+        this(16);
+    }
+
+    public IntQueue(int capacity)
+    {
+        this.items = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value)
+    {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        items[size++] = value;
+    }
+
+    public void addAll(int[] values, int count)
+    {
+        if (size + count > items.length)
+            items = Arrays.copyOf(items, Math.max(items.length * 2, size + count));
+        System.arraycopy(values, 0, items, size, count);
+        size += count;
+    }
+
+    public int get(int index)
+    {
+        return items[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void copyTo(int[] dest, int at)
+    {
+        System.arraycopy(items, 0, dest, at, size);
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(items, size);
+    }
+}
+
+// One bit per person id; set() is a CAS so parallel expansions never claim the same person twice
+class AtomicBitSet
+{
+    private final AtomicLongArray words;
+
+    public AtomicBitSet(int bits)
+    {
+        this.words = new AtomicLongArray((bits + 63) >>> 6);
+    }
+
+    // true if the bit was clear and this call set it
+    public boolean set(int bit)
+    {
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0)
+                return false;
+            if (words.compareAndSet(index, word, word | mask))
+                return true;
+        }
+    }
+
+    public boolean get(int bit)
+    {
+        return (words.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+}
+
+class GenealogyQueries
+{
+    // frontiers smaller than this are expanded on the calling thread
+    static final int PARALLEL_THRESHOLD = 8 * 1024;
+    private static final int CHUNK_SIZE = 2 * 1024;
+
+    private final IndexedRelationships relationships;
+
+    public GenealogyQueries(IndexedRelationships relationships)
+    {
+        this.relationships = relationships;
+    }
+
+    public List<Person> descendantsOf(String name, int maxDepth)
+    {
+        return toPeople(descendantIds(relationships.names().idOf(name), maxDepth));
+    }
+
+    public List<Person> ancestorsOf(String name, int maxDepth)
+    {
+        return toPeople(ancestorIds(relationships.names().idOf(name), maxDepth));
+    }
+
+    public List<Person> siblingsOf(String name)
+    {
+        return toPeople(siblingIds(relationships.names().idOf(name)));
+    }
+
+    public int[] descendantIds(int id, int maxDepth)
+    {
+        return traverse(id, Relationship.PARENT, maxDepth);
+    }
+
+    public int[] ancestorIds(int id, int maxDepth)
+    {
+        return traverse(id, Relationship.CHILD, maxDepth);
+    }
+
+    // explicit SIBLING edges plus every other child of each parent
+    public int[] siblingIds(int id)
+    {
+        if (id < 0)
+            return new int[0];
+        int[] parentRows = relationships.offsets(Relationship.CHILD);
+        int[] parents = relationships.targets(Relationship.CHILD);
+        int[] childRows = relationships.offsets(Relationship.PARENT);
+        int[] children = relationships.targets(Relationship.PARENT);
+        int[] siblingRows = relationships.offsets(Relationship.SIBLING);
+        int[] siblings = relationships.targets(Relationship.SIBLING);
+
+        BitSet seen = new BitSet();
+        seen.set(id);
+        IntQueue result = new IntQueue();
+        for (int s = siblingRows[id]; s < siblingRows[id + 1]; s++)
+            claim(siblings[s], seen, result);
+        for (int p = parentRows[id]; p < parentRows[id + 1]; p++) {
+            int parent = parents[p];
+            for (int c = childRows[parent]; c < childRows[parent + 1]; c++)
+                claim(children[c], seen, result);
+        }
+        return result.toArray();
+    }
+
+    private static void claim(int person, BitSet seen, IntQueue result)
+    {
+        if (!seen.get(person)) {
+            seen.set(person);
+            result.add(person);
+        }
+    }
+
+    // BFS over one relationship type, level by level, up to maxDepth hops from start
+    private int[] traverse(int start, Relationship relationship, int maxDepth)
+    {
+        if (start < 0)
+            return new int[0];
+        int[] offsets = relationships.offsets(relationship);
+        int[] targets = relationships.targets(relationship);
+        AtomicBitSet visited = new AtomicBitSet(relationships.personCount());
+        visited.set(start);
+
+        IntQueue result = new IntQueue();
+        int[] frontier = {start};
+        for (int depth = 0; depth < maxDepth && frontier.length > 0; depth++) {
+            frontier = frontier.length >= PARALLEL_THRESHOLD
+                    ? expandParallel(frontier, offsets, targets, visited)
+                    : expand(frontier, 0, frontier.length, offsets, targets, visited).toArray();
+            result.addAll(frontier, frontier.length);
+        }
+        return result.toArray();
+    }
+
+    private static IntQueue expand(int[] frontier, int from, int to,
+                                   int[] offsets, int[] targets, AtomicBitSet visited)
+    {
+        IntQueue next = new IntQueue(to - from);
+        for (int i = from; i < to; i++) {
+            int person = frontier[i];
+            for (int e = offsets[person]; e < offsets[person + 1]; e++) {
+                int target = targets[e];
+                if (visited.set(target))
+                    next.add(target);
+            }
+        }
+        return next;
+    }
+
+    private static int[] expandParallel(int[] frontier, int[] offsets, int[] targets, AtomicBitSet visited)
+    {
+        int chunks = (frontier.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntQueue[] parts = IntStream.range(0, chunks).parallel()
+                .mapToObj(c -> expand(frontier, c * CHUNK_SIZE,
+                        Math.min(frontier.length, (c + 1) * CHUNK_SIZE), offsets, targets, visited))
+                .toArray(IntQueue[]::new);
+
+        int total = 0;
+        for (IntQueue part : parts)
+            total += part.size();
+        int[] next = new int[total];
+        int at = 0;
+        for (IntQueue part : parts) {
+            part.copyTo(next, at);
+            at += part.size();
+        }
+        return next;
+    }
+
+    private List<Person> toPeople(int[] ids)
+    {
+        if (ids.length == 0)
+            return Collections.emptyList();
+        NameDictionary names = relationships.names();
+        List<Person> people = new ArrayList<>(ids.length);
+        for (int id : ids)
+            people.add(new Person(names.nameOf(id)));
+        return people;
+    }
+}
+
+public class GenealogyQueriesDemo
+{
+    public static void main(String[] args)
+    {
+        IndexedRelationships family = IndexedRelationships.builder()
+                .addParentAndChild("Grandpa", "John")
+                .addParentAndChild("Grandpa", "Jane")
+                .addParentAndChild("John", "Chris")
+                .addParentAndChild("John", "Matt")
+                .addParentAndChild("Matt", "Lily")
+                .build();
+        GenealogyQueries queries = new GenealogyQueries(family);
+
+        for (Person p : queries.descendantsOf("Grandpa", Integer.MAX_VALUE))
+            System.out.println("Grandpa has a descendant called " + p.name);
+        for (Person p : queries.ancestorsOf("Lily", 2))
+            System.out.println("Lily has an ancestor (up to 2 generations) called " + p.name);
+        for (Person p : queries.siblingsOf("Chris"))
+            System.out.println("Chris has a sibling called " + p.name);
+
+        // a complete 4-ary family tree with ~1.4M people, large enough for parallel frontiers
+        IndexedRelationships.Builder builder = IndexedRelationships.builder();
+        int people = 1_398_101;
+        for (int id = 0; id < people; id++)
+            builder.names().intern("person-" + id);
+        for (int child = 1; child < people; child++)
+            builder.addParentAndChild((child - 1) / 4, child);
+        GenealogyQueries large = new GenealogyQueries(builder.build());
+
+        long start = System.nanoTime();
+        int descendants = large.descendantIds(0, Integer.MAX_VALUE).length;
+        System.out.println(String.format("Found %d descendants in %d ms",
+                descendants, (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,402 @@
+package edu.javacodestream.designpattern.solid;
+
+import org.javatuples.Triplet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Because ResearchAfter only depends on the RelationshipBrowser abstraction, the low-level
+ * module can be swapped for a faster one without touching the high-level code.
+ *
+ * RelationshipsAfter scans every Triplet and compares names on each findAllChildrenOf call,
+ * which is O(edges). IndexedRelationships instead:
+ * 1. dictionary-encodes every person name to a dense int id (NameDictionary)
+ * 2. keeps one CSR (compressed sparse row) adjacency per Relationship type: offsets[id] .. offsets[id + 1]
+ *    is the slice of targets[] holding the neighbours of person id.
+ *
+ * A child lookup is then one hash lookup plus O(degree) reads from two int arrays.
+ */
+
+// Interns names as UTF-8 bytes in a single arena and maps them to dense ids
+// with an open-addressing table, so millions of names cost a few arrays instead of
+// millions of String and map entry objects.
+class NameDictionary
+{
+    private byte[] arena = new byte[64 * 1024];
+    private int arenaLength;
+    private int[] starts = new int[1024 + 1];
+    // hash in the high 32 bits, id + 1 in the low 32 bits, 0 means empty;
+    // keeping the hash in the slot means a probe rarely has to touch the arena
+    private long[] table = new long[2048];
+    private int size;
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int intern(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    public int intern(byte[] src, int offset, int length)
+    {
+        int hash = hash(src, offset, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if (entry == 0) {
+                int id = append(src, offset, length);
+                table[slot] = entry(hash, id);
+                if (size * 2 > table.length)
+                    rehash();
+                return id;
+            }
+            if ((int) (entry >>> 32) == hash && matches((int) entry - 1, src, offset, length))
+                return (int) entry - 1;
+        }
+    }
+
+    // -1 if the name was never interned
+    public int idOf(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes, 0, bytes.length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if (entry == 0)
+                return -1;
+            if ((int) (entry >>> 32) == hash && matches((int) entry - 1, bytes, 0, bytes.length))
+                return (int) entry - 1;
+        }
+    }
+
+    public String nameOf(int id)
+    {
+        return new String(arena, starts[id], starts[id + 1] - starts[id], StandardCharsets.UTF_8);
+    }
+
+    public NameDictionary copy()
+    {
+        NameDictionary copy = new NameDictionary();
+        copy.arena = Arrays.copyOf(arena, arenaLength);
+        copy.arenaLength = arenaLength;
+        copy.starts = Arrays.copyOf(starts, size + 1);
+        copy.table = Arrays.copyOf(table, table.length);
+        copy.size = size;
+        return copy;
+    }
+
+    private int append(byte[] src, int offset, int length)
+    {
+        if (arenaLength + length > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+        if (size + 1 == starts.length)
+            starts = Arrays.copyOf(starts, Math.max(16, size * 2 + 1));
+        System.arraycopy(src, offset, arena, arenaLength, length);
+        arenaLength += length;
+        starts[size + 1] = arenaLength;
+        return size++;
+    }
+
+    private boolean matches(int id, byte[] src, int offset, int length)
+    {
+        int start = starts[id];
+        if (starts[id + 1] - start != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (arena[start + i] != src[offset + i])
+                return false;
+        return true;
+    }
+
+    private void rehash()
+    {
+        long[] bigger = new long[table.length * 2];
+        int mask = bigger.length - 1;
+        for (long entry : table) {
+            if (entry == 0)
+                continue;
+            int slot = (int) (entry >>> 32) & mask;
+            while (bigger[slot] != 0)
+                slot = (slot + 1) & mask;
+            bigger[slot] = entry;
+        }
+        table = bigger;
+    }
+
+    private static long entry(int hash, int id)
+    {
+        return ((long) hash << 32) | (id + 1);
+    }
+
+    private static int hash(byte[] src, int offset, int length)
+    {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++)
+            h = (h ^ src[i]) * 0x01000193;
+        return h ^ (h >>> 16);
+    }
+}
+
+class IndexedRelationships implements RelationshipBrowser
+{
+    private static final Relationship[] RELATIONSHIPS = Relationship.values();
+
+    private final NameDictionary names;
+    // one CSR adjacency per Relationship ordinal
+    private final int[][] offsets;
+    private final int[][] targets;
+
+    private IndexedRelationships(NameDictionary names, int[][] offsets, int[][] targets)
+    {
+        this.names = names;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static IndexedRelationships of(List<Triplet<Person, Relationship, Person>> relations)
+    {
+        Builder builder = new Builder();
+        for (Triplet<Person, Relationship, Person> relation : relations)
+            builder.add(relation.getValue0().name, relation.getValue1(), relation.getValue2().name);
+        return builder.build();
+    }
+
+    @Override
+    public List<Person> findAllChildrenOf(String name)
+    {
+        int id = names.idOf(name);
+        if (id < 0)
+            return Collections.emptyList();
+        int[] rows = offsets[Relationship.PARENT.ordinal()];
+        int[] cols = targets[Relationship.PARENT.ordinal()];
+        List<Person> children = new ArrayList<>(rows[id + 1] - rows[id]);
+        for (int i = rows[id]; i < rows[id + 1]; i++)
+            children.add(new Person(names.nameOf(cols[i])));
+        return children;
+    }
+
+    // a new index with count more edges (from[i], relationship ordinal[i], to[i]); the CSR rows
+    // of this one are copied in runs and each new edge is merged into its source row, after the
+    // existing neighbours, instead of replaying every edge through a Builder. Rows of a
+    // relationship that gets no new edge are shared with this index.
+    public IndexedRelationships withEdges(String[] from, byte[] relationship, String[] to, int count)
+    {
+        NameDictionary merged = names.copy();
+        int[] fromIds = new int[count];
+        int[] toIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            fromIds[i] = merged.intern(from[i]);
+            toIds[i] = merged.intern(to[i]);
+        }
+        int people = merged.size();
+        int[][] mergedOffsets = new int[RELATIONSHIPS.length][];
+        int[][] mergedTargets = new int[RELATIONSHIPS.length][];
+        long[] keys = new long[count];
+        for (int r = 0; r < RELATIONSHIPS.length; r++) {
+            // source id in the high bits, position in the delta in the low bits: sorted by
+            // source, and in insertion order within a source
+            int n = 0;
+            for (int i = 0; i < count; i++)
+                if (relationship[i] == r)
+                    keys[n++] = ((long) fromIds[i] << 32) | i;
+            Arrays.sort(keys, 0, n);
+            mergedOffsets[r] = mergeRows(offsets[r], people, keys, n);
+            mergedTargets[r] = n == 0 ? targets[r] : mergeTargets(offsets[r], targets[r], keys, n, toIds);
+        }
+        return new IndexedRelationships(merged, mergedOffsets, mergedTargets);
+    }
+
+    private static int[] mergeRows(int[] rows, int people, long[] keys, int n)
+    {
+        int oldPeople = rows.length - 1;
+        if (n == 0 && people == oldPeople)
+            return rows;
+        int[] merged = new int[people + 1];
+        int k = 0;
+        for (int id = 0; id < people; id++) {
+            while (k < n && (int) (keys[k] >>> 32) == id)
+                k++;
+            merged[id + 1] = rows[Math.min(id + 1, oldPeople)] + k;
+        }
+        return merged;
+    }
+
+    private static int[] mergeTargets(int[] rows, int[] cols, long[] keys, int n, int[] toIds)
+    {
+        int oldPeople = rows.length - 1;
+        int[] merged = new int[cols.length + n];
+        int copied = 0;
+        int written = 0;
+        for (int k = 0; k < n; k++) {
+            int id = (int) (keys[k] >>> 32);
+            int rowEnd = rows[Math.min(id + 1, oldPeople)];
+            if (rowEnd > copied) {
+                System.arraycopy(cols, copied, merged, written, rowEnd - copied);
+                written += rowEnd - copied;
+                copied = rowEnd;
+            }
+            merged[written++] = toIds[(int) keys[k]];
+        }
+        System.arraycopy(cols, copied, merged, written, cols.length - copied);
+        return merged;
+    }
+
+    public NameDictionary names()
+    {
+        return names;
+    }
+
+    public int personCount()
+    {
+        return names.size();
+    }
+
+    public int edgeCount(Relationship relationship)
+    {
+        return targets[relationship.ordinal()].length;
+    }
+
+    // raw CSR arrays, used by the traversal queries; callers must not modify them
+    int[] offsets(Relationship relationship)
+    {
+        return offsets[relationship.ordinal()];
+    }
+
+    int[] targets(Relationship relationship)
+    {
+        return targets[relationship.ordinal()];
+    }
+
+    // Collects edges as parallel int arrays and turns them into CSR with a counting sort in build()
+    static class Builder
+    {
+        private final NameDictionary names;
+        private final int[][] from = new int[RELATIONSHIPS.length][];
+        private final int[][] to = new int[RELATIONSHIPS.length][];
+        private final int[] edgeCounts = new int[RELATIONSHIPS.length];
+
+        Builder()
+        {
+            this(new NameDictionary());
+        }
+
+        Builder(NameDictionary names)
+        {
+            this.names = names;
+            for (int r = 0; r < RELATIONSHIPS.length; r++) {
+                from[r] = new int[1024];
+                to[r] = new int[1024];
+            }
+        }
+
+        public NameDictionary names()
+        {
+            return names;
+        }
+
+        public Builder addParentAndChild(Person parent, Person child)
+        {
+            return addParentAndChild(parent.name, child.name);
+        }
+
+        public Builder addParentAndChild(String parent, String child)
+        {
+            return addParentAndChild(names.intern(parent), names.intern(child));
+        }
+
+        public Builder addParentAndChild(int parentId, int childId)
+        {
+            add(parentId, Relationship.PARENT, childId);
+            return add(childId, Relationship.CHILD, parentId);
+        }
+
+        public Builder addSiblings(String first, String second)
+        {
+            int a = names.intern(first);
+            int b = names.intern(second);
+            add(a, Relationship.SIBLING, b);
+            return add(b, Relationship.SIBLING, a);
+        }
+
+        public Builder add(String from, Relationship relationship, String to)
+        {
+            return add(names.intern(from), relationship, names.intern(to));
+        }
+
+        public Builder add(int fromId, Relationship relationship, int toId)
+        {
+            int r = relationship.ordinal();
+            int n = edgeCounts[r];
+            if (n == from[r].length) {
+                from[r] = Arrays.copyOf(from[r], n * 2);
+                to[r] = Arrays.copyOf(to[r], n * 2);
+            }
+            from[r][n] = fromId;
+            to[r][n] = toId;
+            edgeCounts[r] = n + 1;
+            return this;
+        }
+
+        public IndexedRelationships build()
+        {
+            int people = names.size();
+            int[][] offsets = new int[RELATIONSHIPS.length][];
+            int[][] targets = new int[RELATIONSHIPS.length][];
+            for (int r = 0; r < RELATIONSHIPS.length; r++) {
+                int edges = edgeCounts[r];
+                int[] rows = new int[people + 1];
+                for (int i = 0; i < edges; i++)
+                    rows[from[r][i] + 1]++;
+                for (int id = 0; id < people; id++)
+                    rows[id + 1] += rows[id];
+
+                // stable fill keeps the insertion order of each person's neighbours
+                int[] cursor = Arrays.copyOf(rows, people);
+                int[] cols = new int[edges];
+                for (int i = 0; i < edges; i++)
+                    cols[cursor[from[r][i]]++] = to[r][i];
+
+                offsets[r] = rows;
+                targets[r] = cols;
+            }
+            return new IndexedRelationships(names.copy(), offsets, targets);
+        }
+    }
+}
+
+public class IndexedRelationshipsDemo
+{
+    public static void main(String[] args)
+    {
+        Person parent = new Person("John");
+        Person child1 = new Person("Chris");
+        Person child2 = new Person("Matt");
+
+        // same data as the DependencyInversionPrinciple demo, indexed once
+        RelationshipsAfter relationships = new RelationshipsAfter();
+        relationships.addParentAndChild(parent, child1);
+        relationships.addParentAndChild(parent, child2);
+        new ResearchAfter(IndexedRelationships.of(relationships.getRelations()));
+
+        // or built directly without any Person/Triplet per edge
+        IndexedRelationships indexed = IndexedRelationships.builder()
+                .addParentAndChild("John", "Chris")
+                .addParentAndChild("John", "Matt")
+                .build();
+        new ResearchAfter(indexed);
+    }
+}
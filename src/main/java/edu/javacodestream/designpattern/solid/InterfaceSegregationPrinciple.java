@@ -2,6 +2,8 @@ package edu.javacodestream.designpattern.solid;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
 /**
@@ -12,6 +14,46 @@ import java.util.ArrayList;
  */
 class Document
 {
+    // optional body: either a file on disk or a buffer (heap, direct or mapped), never both
+    private final Path file;
+    private final ByteBuffer buffer;
+
+    public Document()
+    {
+        this(null, null);
+    }
+
+    public Document(Path file)
+    {
+        this(file, null);
+    }
+
+    public Document(ByteBuffer buffer)
+    {
+        this(null, buffer);
+    }
+
+    private Document(Path file, ByteBuffer buffer)
+    {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    public boolean hasBody()
+    {
+        return file != null || buffer != null;
+    }
+
+    public Path getFile()
+    {
+        return file;
+    }
+
+    // a read-only view, so readers never move the owner's position
+    public ByteBuffer getBuffer()
+    {
+        return buffer == null ? null : buffer.asReadOnlyBuffer();
+    }
 }
 
 interface Machine
@@ -0,0 +1,267 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The specifications from the OpenClosedPrinciple stay open for extension, but the storage
+ * behind them does not have to be a List of Product objects.
+ *
+ * Holding tens of millions of Product objects means one object header, one String and two
+ * enum references per product on the heap. The OffHeapProductCatalog keeps the same data as
+ * columns in a single direct (or memory-mapped) ByteBuffer:
+ *
+ *  | header | color column (1 byte/row) | size column (1 byte/row) | name offsets (int/row + 1) | UTF-8 name arena |
+ *
+ * ColorSpecification, SizeSpecification and AndSpecification are compiled into predicates that
+ * read the byte columns directly, so filtering never materializes a Product. Any other
+ * Specification still works, it just falls back to building a Product for each row.
+ *
+ * Because the whole catalog is one buffer, it can be saved to a file and re-opened later with
+ * FileChannel.map, without rebuilding it.
+ */
+class OffHeapProductCatalog
+{
+    private static final int MAGIC = 0x50434154; // "PCAT"
+    private static final int HEADER_SIZE = 16;
+
+    private static final Color[] COLORS = Color.values();
+    private static final Size[] SIZES = Size.values();
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int colorsAt;
+    private final int sizesAt;
+    private final int offsetsAt;
+    private final int arenaAt;
+
+    private OffHeapProductCatalog(ByteBuffer buffer)
+    {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a product catalog");
+        this.count = buffer.getInt(4);
+        this.colorsAt = HEADER_SIZE;
+        this.sizesAt = colorsAt + count;
+        this.offsetsAt = align4(sizesAt + count);
+        this.arenaAt = offsetsAt + (count + 1) * 4;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    // maps an existing catalog file, nothing is copied onto the heap
+    public static OffHeapProductCatalog open(Path file)
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new OffHeapProductCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void save(Path file)
+    {
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (src.hasRemaining())
+                channel.write(src);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public Color colorOf(int row)
+    {
+        return COLORS[buffer.get(colorsAt + row)];
+    }
+
+    public Size sizeOf(int row)
+    {
+        return SIZES[buffer.get(sizesAt + row)];
+    }
+
+    public String nameOf(int row)
+    {
+        int from = buffer.getInt(offsetsAt + row * 4);
+        int to = buffer.getInt(offsetsAt + (row + 1) * 4);
+        byte[] bytes = new byte[to - from];
+        ByteBuffer name = buffer.duplicate();
+        name.position(arenaAt + from);
+        name.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public Product productAt(int row)
+    {
+        return new Product(nameOf(row), colorOf(row), sizeOf(row));
+    }
+
+    // row ids that satisfy the specification, evaluated against the columns
+    public IntStream rows(Specification<Product> spec)
+    {
+        RowPredicate predicate = compile(spec);
+        return IntStream.range(0, count).filter(predicate::test);
+    }
+
+    public Stream<Product> filter(Specification<Product> spec)
+    {
+        return rows(spec).mapToObj(this::productAt);
+    }
+
+    interface RowPredicate
+    {
+        boolean test(int row);
+    }
+
+    private RowPredicate compile(Specification<Product> spec)
+    {
+        if (spec instanceof ColorSpecification) {
+            byte color = (byte) ((ColorSpecification) spec).getColor().ordinal();
+            return row -> buffer.get(colorsAt + row) == color;
+        }
+        if (spec instanceof SizeSpecification) {
+            byte size = (byte) ((SizeSpecification) spec).getSize().ordinal();
+            return row -> buffer.get(sizesAt + row) == size;
+        }
+        if (spec instanceof AndSpecification) {
+            AndSpecification<Product> and = (AndSpecification<Product>) spec;
+            RowPredicate first = compile(and.getFirst());
+            RowPredicate second = compile(and.getSecond());
+            return row -> first.test(row) && second.test(row);
+        }
+        // unknown specification: fall back to the object model
+        return row -> spec.isSatisfied(productAt(row));
+    }
+
+    private static int align4(int position)
+    {
+        return (position + 3) & ~3;
+    }
+
+    // Collects the columns in growable direct buffers and lays them out once in build()
+    static class Builder
+    {
+        private ByteBuffer colors = allocate(1024);
+        private ByteBuffer sizes = allocate(1024);
+        private ByteBuffer offsets = allocate(1024 * 4);
+        private ByteBuffer arena = allocate(16 * 1024);
+        private int count;
+
+        public Builder add(String name, Color color, Size size)
+        {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            colors = ensure(colors, 1);
+            sizes = ensure(sizes, 1);
+            offsets = ensure(offsets, 4);
+            arena = ensure(arena, bytes.length);
+
+            colors.put((byte) color.ordinal());
+            sizes.put((byte) size.ordinal());
+            offsets.putInt(arena.position());
+            arena.put(bytes);
+            count++;
+            return this;
+        }
+
+        public Builder add(Product product)
+        {
+            return add(product.name, product.color, product.size);
+        }
+
+        public OffHeapProductCatalog build()
+        {
+            int offsetsAt = align4(HEADER_SIZE + 2 * count);
+            int arenaAt = offsetsAt + (count + 1) * 4;
+            ByteBuffer out = allocate(arenaAt + arena.position());
+
+            out.putInt(MAGIC).putInt(count).putInt(arena.position()).putInt(0);
+            out.put(flipped(colors));
+            out.put(flipped(sizes));
+            out.position(offsetsAt);
+            out.put(flipped(offsets));
+            out.putInt(arena.position());
+            out.put(flipped(arena));
+            out.clear();
+            return new OffHeapProductCatalog(out);
+        }
+
+        // writes the catalog to a file and returns the memory-mapped view of it
+        public OffHeapProductCatalog buildTo(Path file)
+        {
+            build().save(file);
+            return open(file);
+        }
+
+        private static ByteBuffer allocate(int capacity)
+        {
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static ByteBuffer ensure(ByteBuffer buf, int extra)
+        {
+            if (buf.remaining() >= extra)
+                return buf;
+            long wanted = Math.max((long) buf.capacity() * 2, (long) buf.position() + extra);
+            if (wanted > Integer.MAX_VALUE - HEADER_SIZE)
+                throw new IllegalStateException("Catalog column exceeds 2GB");
+            ByteBuffer bigger = allocate((int) wanted);
+            bigger.put(flipped(buf));
+            return bigger;
+        }
+
+        private static ByteBuffer flipped(ByteBuffer buf)
+        {
+            ByteBuffer view = buf.duplicate();
+            view.flip();
+            return view;
+        }
+    }
+}
+
+public class OffHeapProductCatalogDemo
+{
+    public static void main(String[] args) throws IOException
+    {
+        OffHeapProductCatalog catalog = OffHeapProductCatalog.builder()
+                .add("Apple", Color.GREEN, Size.SMALL)
+                .add("Tree", Color.GREEN, Size.LARGE)
+                .add("House", Color.BLUE, Size.LARGE)
+                .build();
+
+        System.out.println("Green products (off-heap):");
+        catalog.filter(new ColorSpecification(Color.GREEN))
+                .forEach(p -> System.out.println(" - " + p.name + " is green"));
+
+        Path file = Files.createTempFile("products", ".cat");
+        catalog.save(file);
+
+        // re-open without rebuilding
+        OffHeapProductCatalog reopened = OffHeapProductCatalog.open(file);
+        System.out.println("Large blue items (memory-mapped):");
+        reopened.filter(new AndSpecification<>(
+                        new ColorSpecification(Color.BLUE),
+                        new SizeSpecification(Size.LARGE)))
+                .forEach(p -> System.out.println(" - " + p.name + " is large and blue"));
+
+        Files.deleteIfExists(file);
+    }
+}
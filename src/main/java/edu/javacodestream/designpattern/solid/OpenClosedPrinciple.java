@@ -68,6 +68,10 @@ class ColorSpecification implements Specification<Product>
         this.color = color;
     }
 
+    public Color getColor() {
+        return color;
+    }
+
     @Override
     public boolean isSatisfied(Product p) {
         return p.color == color;
@@ -81,6 +85,10 @@ class SizeSpecification implements Specification<Product>
         this.size = size;
     }
 
+    public Size getSize() {
+        return size;
+    }
+
     @Override
     public boolean isSatisfied(Product p) {
         return p.size == size;
@@ -96,6 +104,14 @@ class AndSpecification<T> implements Specification<T>
         this.second = second;
     }
 
+    public Specification<T> getFirst() {
+        return first;
+    }
+
+    public Specification<T> getSecond() {
+        return second;
+    }
+
     @Override
     public boolean isSatisfied(T item) {
         return first.isSatisfied(item) && second.isSatisfied(item);
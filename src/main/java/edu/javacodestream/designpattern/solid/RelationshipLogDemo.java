@@ -0,0 +1,294 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RelationshipsBefore / RelationshipsAfter only live in memory and have to be rebuilt on every start.
+ * RelationshipLog persists them as an append-only binary log, written through memory-mapped
+ * windows of a FileChannel:
+ *
+ *  header: magic (int) | version (int) | end of the last complete record (long)
+ *  'N' | length (int) | UTF-8 bytes      - defines the next person id
+ *  'P' | parent id (int) | child id (int) - addParentAndChild
+ *  'E' | relationship (byte) | from id (int) | to id (int)
+ *
+ * Names are written once, edges only carry int ids, so reloading is a single sequential
+ * pass over the mapped file straight into an IndexedRelationships.Builder, with no Person or
+ * Triplet created per edge.
+ *
+ * The end in the header is only moved by force() (and close()), after the record pages have
+ * been forced, so it never points past data that is not on the device. Records written since
+ * the last force() are not replayed.
+ */
+class RelationshipLog implements AutoCloseable
+{
+    private static final int MAGIC = 0x524c4f47; // "RLOG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_RECORD_SIZE = 1 + 4 + 64 * 1024;
+
+    private static final byte NAME = 'N';
+    private static final byte PARENT_AND_CHILD = 'P';
+    private static final byte EDGE = 'E';
+
+    private static final Relationship[] RELATIONSHIPS = Relationship.values();
+
+    private final FileChannel channel;
+    private final NameDictionary names;
+    private MappedByteBuffer header;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long end;
+
+    private RelationshipLog(FileChannel channel, NameDictionary names, long end) throws IOException
+    {
+        this.channel = channel;
+        this.names = names;
+        this.end = end;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, end);
+        mapWindow(end);
+    }
+
+    // Opens (or creates) a log and replays it into the builder, which must not have any names yet:
+    // the ids in the log are only valid in a dictionary that the log filled from the start
+    public static RelationshipLog open(Path file, IndexedRelationships.Builder replayInto)
+    {
+        if (replayInto.names().size() != 0)
+            throw new IllegalArgumentException("Replay needs an empty builder, this one has "
+                    + replayInto.names().size() + " names");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long end = HEADER_SIZE;
+            if (channel.size() >= HEADER_SIZE)
+                end = replay(channel, replayInto);
+            return new RelationshipLog(channel, replayInto.names().copy(), end);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            if (e instanceof IOException)
+                throw new UncheckedIOException((IOException) e);
+            throw (RuntimeException) e;
+        }
+    }
+
+    public synchronized void addParentAndChild(String parent, String child)
+    {
+        ensureOpen();
+        int parentId = idFor(parent);
+        int childId = idFor(child);
+        ensure(9);
+        window.put(PARENT_AND_CHILD).putInt(parentId).putInt(childId);
+        commit();
+    }
+
+    public synchronized void add(String from, Relationship relationship, String to)
+    {
+        ensureOpen();
+        int fromId = idFor(from);
+        int toId = idFor(to);
+        ensure(10);
+        window.put(EDGE).put((byte) relationship.ordinal()).putInt(fromId).putInt(toId);
+        commit();
+    }
+
+    public synchronized long size()
+    {
+        return end;
+    }
+
+    // flushes the records to the device, then publishes their end in the header
+    public synchronized void force()
+    {
+        ensureOpen();
+        window.force();
+        header.putLong(8, end);
+        header.force();
+    }
+
+    // the file is only trimmed to the last record once nothing refers to the mappings any more
+    @Override
+    public synchronized void close()
+    {
+        if (header == null)
+            return;
+        try {
+            force();
+            window = null;
+            header = null;
+            channel.truncate(end);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void ensureOpen()
+    {
+        if (header == null)
+            throw new IllegalStateException("Relationship log is closed");
+    }
+
+    private int idFor(String name)
+    {
+        int known = names.size();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int id = names.intern(bytes, 0, bytes.length);
+        if (id == known) {
+            if (bytes.length > MAX_RECORD_SIZE - 5)
+                throw new IllegalArgumentException("Name too long for the relationship log");
+            ensure(5 + bytes.length);
+            window.put(NAME).putInt(bytes.length).put(bytes);
+            commit();
+        }
+        return id;
+    }
+
+    // end only ever points past complete records
+    private void commit()
+    {
+        end = windowStart + window.position();
+    }
+
+    private void ensure(int bytes)
+    {
+        if (window.remaining() < bytes)
+            mapWindow(end);
+    }
+
+    // the records of a window are forced before it is dropped, as force() only sees the current one
+    private void mapWindow(long position)
+    {
+        try {
+            if (window != null)
+                window.force();
+            window = channel.map(FileChannel.MapMode.READ_WRITE, position, WINDOW_SIZE);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            windowStart = position;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // single sequential pass over read-only windows; returns the end of the last complete record
+    private static long replay(FileChannel channel, IndexedRelationships.Builder builder) throws IOException
+    {
+        MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        head.order(ByteOrder.LITTLE_ENDIAN);
+        if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a relationship log");
+        long end = head.getLong(8);
+
+        NameDictionary names = builder.names();
+        byte[] scratch = new byte[256];
+        long position = HEADER_SIZE;
+        while (position < end) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(WINDOW_SIZE, end - position));
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = in.limit();
+            int at = 0;
+            while (at < limit) {
+                byte type = in.get(at);
+                if (type == NAME) {
+                    if (at + 5 > limit)
+                        break;
+                    int length = in.getInt(at + 1);
+                    if (length < 0 || length > MAX_RECORD_SIZE - 5)
+                        throw corrupt(position + at);
+                    if (at + 5 + length > limit)
+                        break;
+                    if (length > scratch.length)
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    in.position(at + 5);
+                    in.get(scratch, 0, length);
+                    if (names.intern(scratch, 0, length) != names.size() - 1)
+                        throw corrupt(position + at); // a name defined twice would shift the ids
+                    at += 5 + length;
+                } else if (type == PARENT_AND_CHILD) {
+                    if (at + 9 > limit)
+                        break;
+                    int parent = in.getInt(at + 1);
+                    int child = in.getInt(at + 5);
+                    if (!known(parent, names) || !known(child, names))
+                        throw corrupt(position + at);
+                    builder.addParentAndChild(parent, child);
+                    at += 9;
+                } else if (type == EDGE) {
+                    if (at + 10 > limit)
+                        break;
+                    byte relationship = in.get(at + 1);
+                    int from = in.getInt(at + 2);
+                    int to = in.getInt(at + 6);
+                    if (relationship < 0 || relationship >= RELATIONSHIPS.length || !known(from, names) || !known(to, names))
+                        throw corrupt(position + at);
+                    builder.add(from, RELATIONSHIPS[relationship], to);
+                    at += 10;
+                } else {
+                    throw corrupt(position + at);
+                }
+            }
+            if (at == 0)
+                throw new IllegalStateException("Truncated relationship log at " + position);
+            // the next window starts at the first record that did not fit in this one
+            position += at;
+        }
+        return end;
+    }
+
+    private static boolean known(int id, NameDictionary names)
+    {
+        return id >= 0 && id < names.size();
+    }
+
+    private static IllegalStateException corrupt(long position)
+    {
+        return new IllegalStateException("Corrupt relationship log at " + position);
+    }
+}
+
+public class RelationshipLogDemo
+{
+    public static void main(String[] args) throws IOException
+    {
+        Path file = Files.createTempFile("relationships", ".log");
+        Files.delete(file);
+
+        int people = 5_000_000;
+        try (RelationshipLog log = RelationshipLog.open(file, IndexedRelationships.builder())) {
+            for (int child = 1; child < people; child++)
+                log.addParentAndChild("person-" + (child - 1) / 4, "person-" + child);
+        }
+        try (ConcurrentRelationshipStore store = ConcurrentRelationshipStore.open(file)) {
+            store.addParentAndChild("John", "Chris");
+            store.addParentAndChild("John", "Matt");
+        }
+        System.out.println(String.format("Log size: %d MB", Files.size(file) / (1024 * 1024)));
+
+        // "restart": rebuild the index from the mapped log
+        long start = System.nanoTime();
+        try (ConcurrentRelationshipStore store = ConcurrentRelationshipStore.open(file)) {
+            System.out.println(String.format("Reloaded %d edges in %d ms",
+                    store.indexed().edgeCount(Relationship.PARENT), (System.nanoTime() - start) / 1_000_000));
+            new ResearchAfter(store);
+        }
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,164 @@
+package edu.javacodestream.designpattern.solid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Printer that actually moves the Document body to a device channel, without copying it
+ * through heap byte arrays:
+ * - file-backed documents are streamed with FileChannel.transferTo, so the kernel moves the
+ *   bytes from the page cache to the device (sendfile / copy_file_range where available)
+ * - buffer-backed documents are not copied at all; their buffers are collected into a batch and
+ *   written with one gathering write once batchBytes or MAX_BATCH_DOCUMENTS is reached,
+ *   so many small jobs become a few device writes
+ *
+ * The order of documents on the device is the order of Print calls. A buffer-backed document
+ * may still be in the pending batch when Print returns; call flush() to push it out.
+ */
+class SpoolingPrinter implements Printer, AutoCloseable
+{
+    static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+    // gathering writes take at most IOV_MAX buffers at once on most systems
+    static final int MAX_BATCH_DOCUMENTS = 1024;
+
+    private final WritableByteChannel device;
+    private final int batchBytes;
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private long batchedBytes;
+    private long deviceWrites;
+    private long bytesPrinted;
+
+    public SpoolingPrinter(WritableByteChannel device)
+    {
+        this(device, DEFAULT_BATCH_BYTES);
+    }
+
+    public SpoolingPrinter(WritableByteChannel device, int batchBytes)
+    {
+        this.device = device;
+        this.batchBytes = batchBytes;
+    }
+
+    public synchronized void Print(Document d) throws IOException
+    {
+        if (!d.hasBody())
+            return;
+        if (d.getFile() != null) {
+            flush();
+            transfer(d.getFile());
+            return;
+        }
+        ByteBuffer body = d.getBuffer();
+        batch.add(body);
+        batchedBytes += body.remaining();
+        if (batchedBytes >= batchBytes || batch.size() >= MAX_BATCH_DOCUMENTS)
+            flush();
+    }
+
+    // the batch keeps only what is still unwritten, so a flush that failed part way can be retried
+    public synchronized void flush() throws IOException
+    {
+        if (batch.isEmpty())
+            return;
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        try {
+            int first = 0;
+            while (true) {
+                while (first < buffers.length && !buffers[first].hasRemaining())
+                    first++;
+                if (first == buffers.length)
+                    break;
+                long written;
+                if (device instanceof GatheringByteChannel)
+                    written = ((GatheringByteChannel) device).write(buffers, first, buffers.length - first);
+                else
+                    written = device.write(buffers[first]);
+                deviceWrites++;
+                if (written == 0)
+                    throw new IOException("Printer device accepted no bytes of a " + batchedBytes + " byte batch");
+                bytesPrinted += written;
+            }
+        } finally {
+            batch.removeIf(buffer -> !buffer.hasRemaining());
+            batchedBytes = 0;
+            for (ByteBuffer buffer : batch)
+                batchedBytes += buffer.remaining();
+        }
+    }
+
+    public synchronized long getDeviceWrites()
+    {
+        return deviceWrites;
+    }
+
+    public synchronized long getBytesPrinted()
+    {
+        return bytesPrinted;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void transfer(Path file) throws IOException
+    {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long written = source.transferTo(position, size - position, device);
+                deviceWrites++;
+                // no progress: the job was truncated under us, or the device takes no more bytes
+                if (written == 0) {
+                    if (position >= source.size())
+                        throw new IOException(file + " shrank to " + source.size() + " bytes while printing");
+                    throw new IOException("Printer device accepted no bytes of " + file + " at " + position);
+                }
+                position += written;
+            }
+            bytesPrinted += size;
+        }
+    }
+}
+
+public class SpoolingPrinterDemo
+{
+    public static void main(String[] args) throws Exception
+    {
+        Path bigJob = Files.createTempFile("print-job", ".pdf");
+        Files.write(bigJob, new byte[64 * 1024 * 1024]);
+        Path spool = Files.createTempFile("printer", ".spool");
+
+        try (FileChannel device = FileChannel.open(spool, StandardOpenOption.WRITE);
+             SpoolingPrinter printer = new SpoolingPrinter(device)) {
+            MultiFunctionMachine machine = new MultiFunctionMachine(printer, new SlowScanner());
+
+            long start = System.nanoTime();
+            machine.Print(new Document(bigJob));
+            for (int i = 0; i < 10_000; i++)
+                machine.Print(new Document(ByteBuffer.wrap(("page " + i + "\n").getBytes(StandardCharsets.UTF_8))));
+            printer.flush();
+
+            System.out.println(String.format("Printed %d bytes with %d device writes in %d ms",
+                    printer.getBytesPrinted(), printer.getDeviceWrites(), (System.nanoTime() - start) / 1_000_000));
+        }
+        Files.delete(bigJob);
+        Files.delete(spool);
+    }
+}
@@ -34,7 +34,7 @@ class RoundSocket {
 }
 
 class RoundPowerPlug{
-    int radius;
+    final int radius;
 
     public RoundPowerPlug(int radius) {
         this.radius = radius;
@@ -46,7 +46,7 @@ class RoundPowerPlug{
 }
 
 class SquarePowerPlug {
-    int width;
+    final int width;
 
     public SquarePowerPlug(int width) {
         this.width = width;
@@ -59,7 +59,7 @@ class SquarePowerPlug {
 // When a circle is inscribed in a square, the length of each side of the square
 // is equal to the diameter of the circle. hence the radius is = (side of the square/2)
 class SquarePowerPlugAdapter extends RoundPowerPlug {
-    SquarePowerPlug squarePowerPlug;
+    final SquarePowerPlug squarePowerPlug;
 
     public SquarePowerPlugAdapter(SquarePowerPlug squarePowerPlug) {
         super(squarePowerPlug.width / 2); // radius is = (side of the square/2)
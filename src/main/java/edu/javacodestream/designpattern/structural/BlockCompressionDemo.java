@@ -0,0 +1,629 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codec behind CompressionDecorator.
+ *
+ * The data is cut into independent fixed-size blocks and every block is deflated on its own, so
+ * blocks can be compressed and inflated on all cores, and a single block can be inflated without
+ * touching the others. Layout (little endian):
+ *
+ *   block 0 | block 1 | ... | block n-1 | end offset of each block (n longs) | footer
+ *   footer  = raw length (long) | block size (int) | block count (int) | magic (int)
+ *
+ * The index sits behind the blocks, so compress() can stream: the offsets are only known after
+ * each block is done, and nothing written before has to be patched. The streaming side is the
+ * Encoder, a WritableByteChannel that can also be chained in front of another channel.
+ *
+ * read(position, length) only fetches the footer, the index and the blocks the range falls in,
+ * so a range can be read without reading the whole compressed data.
+ *
+ * Compression keeps at most 2 blocks per worker in flight, and their byte[] buffers come from a
+ * BufferPool, so a multi-GB stream runs in constant memory. Deflater / Inflater instances are
+ * reused per worker thread.
+ */
+class BlockCompressor {
+
+    static final int MAGIC = 0x424C4B5A; // "BLKZ"
+    static final int FOOTER_BYTES = 8 + 4 + 4 + 4;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final int blockSize;
+    private final int level;
+    private final ExecutorService workers;
+    private final int window;
+    private final BufferPool rawBuffers;
+    private final BufferPool compressedBuffers;
+
+    public BlockCompressor() {
+        this(256 * 1024, Deflater.DEFAULT_COMPRESSION, BlockWorkers.shared(), BlockWorkers.THREADS);
+    }
+
+    public BlockCompressor(int blockSize, int level, ExecutorService workers, int parallelism) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        this.blockSize = blockSize;
+        this.level = level;
+        this.workers = workers;
+        this.window = 2 * parallelism;
+        this.rawBuffers = new BufferPool(blockSize, window + parallelism);
+        this.compressedBuffers = new BufferPool(maxCompressedSize(blockSize), window + parallelism);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // zlib's deflateBound plus the zlib header and trailer, rounded up
+    static int maxCompressedSize(int length) {
+        return length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 64;
+    }
+
+    public ByteBuffer compress(ByteBuffer data) {
+        GrowableChannel out = new GrowableChannel(data.remaining() / 2 + FOOTER_BYTES);
+        try {
+            compress(new BufferChannel(data.duplicate()), out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toBuffer();
+    }
+
+    // returns the number of compressed bytes written to out; out is not closed
+    public long compress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        Encoder encoder = encoder(out);
+        encoder.transferFrom(in);
+        encoder.finish();
+        return encoder.getCompressedLength();
+    }
+
+    // a push-style compressor: raw bytes written to it come out compressed on downstream
+    public Encoder encoder(WritableByteChannel downstream) {
+        return new Encoder(downstream);
+    }
+
+    public ByteBuffer decompress(ByteBuffer compressed) {
+        Index index = Index.of(compressed);
+        if (index.rawLength > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too large for one buffer: " + index.rawLength + " bytes");
+        byte[] raw = new byte[(int) index.rawLength];
+        List<Future<?>> tasks = new ArrayList<>(index.blockCount());
+        for (int i = 0; i < index.blockCount(); i++) {
+            int block = i;
+            tasks.add(workers.submit(() -> inflate(blockBytes(compressed, index, block), block, index.rawLength(block),
+                    raw, block * index.blockSize)));
+        }
+        for (Future<?> task : tasks)
+            await(task);
+        return ByteBuffer.wrap(raw);
+    }
+
+    // random access: inflates only the given block
+    public ByteBuffer readBlock(ByteBuffer compressed, int block) {
+        Index index = Index.of(compressed);
+        byte[] raw = new byte[index.rawLength(block)];
+        inflate(blockBytes(compressed, index, block), block, raw.length, raw, 0);
+        return ByteBuffer.wrap(raw);
+    }
+
+    // random access: length raw bytes (fewer at the end) from position, inflating only the blocks
+    // they fall in; the compressed data is only read through reader, footer and index included
+    public ByteBuffer read(long compressedLength, RangeReader reader, long position, int length) {
+        Index index = Index.read(compressedLength, reader);
+        long end = Math.min(index.rawLength, position + length);
+        if (position >= end)
+            return ByteBuffer.allocate(0);
+        byte[] result = new byte[(int) (end - position)];
+        byte[] raw = null;
+        for (int block = (int) (position / index.blockSize); (long) block * index.blockSize < end; block++) {
+            long blockStart = (long) block * index.blockSize;
+            int expected = index.rawLength(block);
+            ByteBuffer bytes = reader.read(index.start(block), (int) (index.end(block) - index.start(block)));
+            if (blockStart >= position && blockStart + expected <= end) {
+                inflate(bytes, block, expected, result, (int) (blockStart - position)); // whole block, in place
+            } else {
+                if (raw == null)
+                    raw = new byte[index.blockSize];
+                inflate(bytes, block, expected, raw, 0);
+                long from = Math.max(position, blockStart);
+                long to = Math.min(end, blockStart + expected);
+                System.arraycopy(raw, (int) (from - blockStart), result, (int) (from - position), (int) (to - from));
+            }
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    private Block deflate(byte[] raw, int length) {
+        byte[] out = compressedBuffers.acquire();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < out.length)
+            size += deflater.deflate(out, size, out.length - size);
+        rawBuffers.release(raw);
+        if (!deflater.finished())
+            throw new IllegalStateException("Block did not fit its compression bound");
+        return new Block(out, size);
+    }
+
+    private static ByteBuffer blockBytes(ByteBuffer compressed, Index index, int block) {
+        ByteBuffer bytes = compressed.duplicate();
+        bytes.position(compressed.position() + (int) index.start(block));
+        bytes.limit(compressed.position() + (int) index.end(block));
+        return bytes;
+    }
+
+    private void inflate(ByteBuffer blockBytes, int block, int expected, byte[] raw, int offset) {
+        int length = blockBytes.remaining();
+        byte[] in = length <= compressedBuffers.bufferSize ? compressedBuffers.acquire() : new byte[length];
+        try {
+            blockBytes.duplicate().get(in, 0, length);
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(in, 0, length);
+            int size = 0;
+            while (size < expected && !inflater.finished())
+                size += inflater.inflate(raw, offset + size, expected - size);
+            if (size != expected)
+                throw new IllegalStateException("Block " + block + " inflated to " + size + " of " + expected + " bytes");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Block " + block + " is corrupt", e);
+        } finally {
+            compressedBuffers.release(in);
+        }
+    }
+
+    private static int writeFully(WritableByteChannel out, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining())
+            out.write(data);
+        return length;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Fills pooled block buffers with whatever is written to it, deflates every full block on the
+     * workers and writes the results to downstream in order, at most window blocks behind.
+     * finish() flushes the last partial block and writes the index; close() then closes downstream.
+     */
+    final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel downstream;
+        private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<>();
+        private long[] ends = new long[16];
+        private int blocks;
+        private long rawLength;
+        private long written;
+        private byte[] current;
+        private int fill;
+        private boolean finished;
+
+        private Encoder(WritableByteChannel downstream) {
+            this.downstream = downstream;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            checkOpen();
+            int length = source.remaining();
+            while (source.hasRemaining()) {
+                if (current == null)
+                    current = rawBuffers.acquire();
+                int n = Math.min(source.remaining(), blockSize - fill);
+                source.get(current, fill, n);
+                fill += n;
+                if (fill == blockSize)
+                    submitCurrent();
+            }
+            return length;
+        }
+
+        // reads the block buffers straight from in, without an intermediate copy
+        long transferFrom(ReadableByteChannel in) throws IOException {
+            checkOpen();
+            long total = 0;
+            while (true) {
+                if (current == null)
+                    current = rawBuffers.acquire();
+                int n = in.read(ByteBuffer.wrap(current, fill, blockSize - fill));
+                if (n < 0)
+                    return total;
+                fill += n;
+                total += n;
+                if (fill == blockSize)
+                    submitCurrent();
+            }
+        }
+
+        public void finish() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            try {
+                if (fill > 0)
+                    submitCurrent();
+                while (!inFlight.isEmpty())
+                    drainOne();
+            } finally {
+                if (current != null)
+                    rawBuffers.release(current);
+                current = null;
+                for (Future<Block> pending : inFlight)
+                    pending.cancel(false);
+            }
+            ByteBuffer tail = ByteBuffer.allocate(blocks * 8 + FOOTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < blocks; i++)
+                tail.putLong(ends[i]);
+            tail.putLong(rawLength).putInt(blockSize).putInt(blocks).putInt(MAGIC);
+            tail.flip();
+            written += writeFully(downstream, tail);
+        }
+
+        public long getCompressedLength() {
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !finished;
+        }
+
+        // downstream is only closed once finish() succeeded: closing a FileDataSource.Writer
+        // commits the file, so after a failure it is left open for the caller to abort
+        @Override
+        public void close() throws IOException {
+            finish();
+            downstream.close();
+        }
+
+        private void submitCurrent() throws IOException {
+            byte[] raw = current;
+            int length = fill;
+            current = null;
+            fill = 0;
+            rawLength += length;
+            if (inFlight.size() >= window)
+                drainOne();
+            inFlight.add(workers.submit(() -> deflate(raw, length)));
+        }
+
+        private void drainOne() throws IOException {
+            Block block = await(inFlight.poll());
+            written += writeFully(downstream, ByteBuffer.wrap(block.bytes, 0, block.length));
+            compressedBuffers.release(block.bytes);
+            if (blocks == ends.length)
+                ends = Arrays.copyOf(ends, blocks * 2);
+            ends[blocks++] = written;
+        }
+
+        private void checkOpen() throws IOException {
+            if (finished)
+                throw new ClosedChannelException();
+        }
+    }
+
+    private static final class Block {
+        final byte[] bytes;
+        final int length;
+
+        Block(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    // the block index read back from the end of a compressed buffer
+    static final class Index {
+        final long rawLength;
+        final int blockSize;
+        private final long[] ends;
+
+        private Index(long rawLength, int blockSize, long[] ends) {
+            this.rawLength = rawLength;
+            this.blockSize = blockSize;
+            this.ends = ends;
+        }
+
+        static Index of(ByteBuffer compressed) {
+            return read(compressed.remaining(), (position, length) -> {
+                ByteBuffer slice = compressed.duplicate();
+                slice.position(compressed.position() + (int) position);
+                slice.limit(slice.position() + length);
+                return slice;
+            });
+        }
+
+        // reads the footer, then the block offsets in front of it
+        static Index read(long compressedLength, RangeReader reader) {
+            if (compressedLength == 0)
+                return new Index(0, 1, new long[0]);
+            if (compressedLength < FOOTER_BYTES)
+                throw new IllegalStateException("Not block-compressed data: too short");
+            long footerAt = compressedLength - FOOTER_BYTES;
+            ByteBuffer footer = reader.read(footerAt, FOOTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (footer.getInt(footer.position() + 16) != MAGIC)
+                throw new IllegalStateException("Not block-compressed data: bad magic");
+            long rawLength = footer.getLong(footer.position());
+            int blockSize = footer.getInt(footer.position() + 8);
+            int blocks = footer.getInt(footer.position() + 12);
+            if (rawLength < 0 || blockSize <= 0 || blocks < 0 || blocks * 8L > footerAt
+                    || blocks != (rawLength + blockSize - 1) / blockSize)
+                throw new IllegalStateException("Not block-compressed data: corrupt footer (" + rawLength
+                        + " bytes, block size " + blockSize + ", " + blocks + " blocks)");
+            long dataEnd = footerAt - blocks * 8L;
+            ByteBuffer offsets = reader.read(dataEnd, blocks * 8).order(ByteOrder.LITTLE_ENDIAN);
+            long[] ends = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                ends[i] = offsets.getLong(offsets.position() + i * 8);
+                if (ends[i] < (i == 0 ? 0 : ends[i - 1]) || ends[i] > dataEnd)
+                    throw new IllegalStateException("Not block-compressed data: bad offset of block " + i);
+            }
+            return new Index(rawLength, blockSize, ends);
+        }
+
+        int blockCount() {
+            return ends.length;
+        }
+
+        long start(int block) {
+            return block == 0 ? 0 : ends[block - 1];
+        }
+
+        long end(int block) {
+            return ends[block];
+        }
+
+        int rawLength(int block) {
+            return (int) Math.min(blockSize, rawLength - (long) block * blockSize);
+        }
+    }
+}
+
+// positional reads of encoded data, e.g. DataSource::readBuffer
+interface RangeReader {
+    ByteBuffer read(long position, int length);
+}
+
+// a bounded free list of equally sized byte arrays; acquire() allocates when the list is empty
+class BufferPool {
+    final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> free;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    byte[] acquire() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    void release(byte[] buffer) {
+        if (buffer.length == bufferSize)
+            free.offer(buffer);
+    }
+}
+
+// the worker pool shared by the block codecs; daemon threads, one per core
+final class BlockWorkers {
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService SHARED = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "block-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BlockWorkers() {
+    }
+
+    static ExecutorService shared() {
+        return SHARED;
+    }
+}
+
+// reads from a ByteBuffer as if it was a channel
+class BufferChannel implements ReadableByteChannel {
+    private final ByteBuffer source;
+
+    BufferChannel(ByteBuffer source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read(ByteBuffer target) {
+        if (!source.hasRemaining())
+            return -1;
+        int length = Math.min(source.remaining(), target.remaining());
+        ByteBuffer chunk = source.duplicate();
+        chunk.limit(chunk.position() + length);
+        target.put(chunk);
+        source.position(source.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+// collects everything written into one heap buffer
+class GrowableChannel implements WritableByteChannel {
+    private byte[] bytes;
+    private int size;
+
+    GrowableChannel(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        int length = source.remaining();
+        if (size + length > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+        source.get(bytes, size, length);
+        size += length;
+        return length;
+    }
+
+    ByteBuffer toBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size).slice();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+public class BlockCompressionDemo {
+    public static void main(String[] args) throws IOException {
+        ByteBuffer data = sampleData(64 * 1024 * 1024);
+
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        BlockCompressor oneCore = new BlockCompressor(256 * 1024, Deflater.DEFAULT_COMPRESSION, single, 1);
+        BlockCompressor allCores = new BlockCompressor();
+        for (int round = 0; round < 2; round++) {
+            time("1 worker", oneCore, data);
+            time(BlockWorkers.THREADS + " workers", allCores, data);
+        }
+        single.shutdown();
+
+        ByteBuffer compressed = allCores.compress(data);
+        System.out.println("Round trip equal: " + allCores.decompress(compressed).equals(data.duplicate()));
+        int block = 57;
+        ByteBuffer one = allCores.readBlock(compressed, block);
+        ByteBuffer expected = data.duplicate();
+        expected.position(block * allCores.getBlockSize());
+        expected.limit(expected.position() + one.remaining());
+        System.out.println("Block " + block + " read on its own equal: " + one.equals(expected));
+
+        // streaming: a file larger than any single buffer compresses in constant memory
+        Path target = Files.createTempFile("stream", ".blkz");
+        try (WritableByteChannel out = Files.newByteChannel(target, StandardOpenOption.WRITE)) {
+            long written = allCores.compress(new RepeatingChannel(data, 256L * 1024 * 1024), out);
+            System.out.println(String.format("Streamed 256 MB into %d MB", written >> 20));
+        }
+        Files.delete(target);
+
+        Path file = Files.createTempFile("compressed", ".dat");
+        DataSource source = new CompressionDecorator(new FileDataSource(file.toString()));
+        source.writeData("test data");
+        System.out.println("Read through CompressionDecorator: " + source.readData());
+        Files.delete(file);
+    }
+
+    // the sample repeated up to the given length, without materializing it
+    private static final class RepeatingChannel implements ReadableByteChannel {
+        private final ByteBuffer sample;
+        private long remaining;
+
+        RepeatingChannel(ByteBuffer sample, long length) {
+            this.sample = sample.duplicate();
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (remaining == 0)
+                return -1;
+            if (!sample.hasRemaining())
+                sample.rewind();
+            ByteBuffer chunk = sample.duplicate();
+            int length = (int) Math.min(Math.min(chunk.remaining(), target.remaining()), remaining);
+            chunk.limit(chunk.position() + length);
+            target.put(chunk);
+            sample.position(sample.position() + length);
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void time(String name, BlockCompressor compressor, ByteBuffer data) {
+        long start = System.nanoTime();
+        ByteBuffer compressed = compressor.compress(data);
+        long compressNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        compressor.decompress(compressed);
+        long decompressNanos = System.nanoTime() - start;
+        System.out.println(String.format("%-10s compress %6.0f MB/s, decompress %6.0f MB/s, %d MB -> %d MB",
+                name, mbPerSecond(data.remaining(), compressNanos), mbPerSecond(data.remaining(), decompressNanos),
+                data.remaining() >> 20, compressed.remaining() >> 20));
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes * 1e9 / nanos / (1 << 20);
+    }
+
+    // log-like text: compressible, but not trivially
+    private static ByteBuffer sampleData(int size) {
+        String[] words = {"device", "socket", "plug", "remote", "volume", "channel", "error", "ok", "user", "42"};
+        Random random = new Random(7);
+        byte[] bytes = new byte[size];
+        int at = 0;
+        while (at < size) {
+            String line = words[random.nextInt(words.length)] + '=' + random.nextInt(100_000) + ' ';
+            for (int i = 0; i < line.length() && at < size; i++)
+                bytes[at++] = (byte) line.charAt(i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+}
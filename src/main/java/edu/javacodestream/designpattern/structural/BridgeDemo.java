@@ -29,6 +29,17 @@ interface Device {
     void setVolume(int volume);
     int getChannel();
     void setChannel(int channel);
+
+    // read-modify-write helpers; thread-safe devices override them with atomic versions
+    default int adjustVolume(int delta) {
+        setVolume(getVolume() + delta);
+        return getVolume();
+    }
+
+    default int adjustChannel(int delta) {
+        setChannel(getChannel() + delta);
+        return getChannel();
+    }
 }
 
 class Tv implements Device {
@@ -152,24 +163,20 @@ class RemoteControl {
 
     public int volumeUp() {
         System.out.println("Volume up for device: " + device.getDeviceType());
-        device.setVolume(device.getVolume() + 1);
-        return device.getVolume();
+        return device.adjustVolume(1);
     }
 
     public int volumeDown() {
         System.out.println("Volume down for device: " + device.getDeviceType());
-        device.setVolume(device.getVolume() - 1);
-        return device.getVolume();
+        return device.adjustVolume(-1);
     }
     public int channelUp() {
         System.out.println("Channel up for device: " + device.getDeviceType());
-        device.setChannel(device.getChannel() + 1);
-        return device.getChannel();
+        return device.adjustChannel(1);
     }
     public int channelDown() {
         System.out.println("Channel down for device: " + device.getDeviceType());
-        device.setChannel(device.getChannel() - 1);
-        return device.getChannel();
+        return device.adjustChannel(-1);
     }
 
     public void mute() {
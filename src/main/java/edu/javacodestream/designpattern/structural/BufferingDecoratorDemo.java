@@ -0,0 +1,353 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind with group commit.
+ *
+ * Every append on a FileDataSource is one write, and making it durable is one force, per call.
+ * With many threads appending small records, the disk spends its time on flushes.
+ *
+ * BufferingDecorator copies concurrent appends into the current batch buffer and hands each
+ * writer a future of the position its data will have in the wrapped source. A flusher thread
+ * commits a batch with one append and one force when
+ * - the batch buffer is full (size trigger), or
+ * - the oldest write in the batch has waited maxDelayMillis (time trigger)
+ * and then completes all the futures of the batch. While a commit is running, new writes keep
+ * filling the next batch, so the busier the source, the more writes share one force.
+ *
+ * writeBuffer / readBuffer flush the pending appends first, so reads see every append that
+ * returned a future before them. A flush waits for the batch it sealed (or the last one still
+ * committing), so a failed commit fails the flushes that waited for it, not every later one.
+ *
+ * At most MAX_SEALED_BATCHES full batches wait for the flusher; when the disk falls further
+ * behind, appendAsync blocks the caller until the flusher has taken them (backpressure).
+ */
+class BufferingDecorator extends DataSourceDecorator implements AutoCloseable {
+
+    static final int MAX_SEALED_BATCHES = 4;
+
+    private static final class Batch {
+        final ByteBuffer buffer;
+        final long openedAt;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+        final List<CompletableFuture<Long>> futures = new ArrayList<>();
+        final List<Integer> offsets = new ArrayList<>();
+
+        Batch(ByteBuffer buffer, long openedAt) {
+            this.buffer = buffer;
+            this.openedAt = openedAt;
+        }
+    }
+
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+    private final Object lock = new Object();
+    private final ArrayDeque<Batch> sealed = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final Thread flusher;
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private Batch current;
+    private CompletableFuture<Void> lastSealed; // null once it has completed
+    private boolean closed;
+
+    public BufferingDecorator(DataSource wrappedDS, int maxBatchBytes, long maxDelayMillis) {
+        super(wrappedDS);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flusher = new Thread(this::runFlusher, "group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // completes with the position of data in the wrapped source once it has been forced;
+    // blocks while MAX_SEALED_BATCHES batches are waiting for the flusher
+    public CompletableFuture<Long> appendAsync(ByteBuffer data) {
+        int length = data.remaining();
+        synchronized (lock) {
+            // other appenders may fill a new batch while this one waits, so check again after waking
+            while (true) {
+                if (closed)
+                    throw new IllegalStateException("BufferingDecorator is closed");
+                if (current != null && current.buffer.remaining() < length)
+                    seal();
+                if (current != null || sealed.size() < MAX_SEALED_BATCHES)
+                    break;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    CompletableFuture<Long> interrupted = new CompletableFuture<>();
+                    interrupted.completeExceptionally(e);
+                    return interrupted;
+                }
+            }
+            if (current == null) {
+                current = new Batch(takeBuffer(length), System.nanoTime());
+                lock.notifyAll(); // the flusher starts the time trigger
+            }
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            current.offsets.add(current.buffer.position());
+            current.futures.add(future);
+            current.buffer.put(data.duplicate());
+            if (!current.buffer.hasRemaining())
+                seal();
+            appends.incrementAndGet();
+            return future;
+        }
+    }
+
+    @Override
+    public long append(ByteBuffer data) {
+        return appendAsync(data).join();
+    }
+
+    // commits what has been appended so far; completes when it is durable
+    public CompletableFuture<Void> flush() {
+        synchronized (lock) {
+            if (current != null)
+                seal();
+            return lastSealed == null ? CompletableFuture.completedFuture(null) : lastSealed;
+        }
+    }
+
+    @Override
+    public void force() {
+        flush().join();
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer data) {
+        flush().join();
+        wrappedDS.writeBuffer(data);
+    }
+
+    @Override
+    public ByteBuffer readBuffer() {
+        flush().join();
+        return wrappedDS.readBuffer();
+    }
+
+    @Override
+    public long size() {
+        flush().join();
+        return wrappedDS.size();
+    }
+
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        flush().join();
+        return wrappedDS.readBuffer(position, length);
+    }
+
+    public long getAppends() {
+        return appends.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            if (current != null)
+                seal();
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void seal() {
+        sealed.add(current);
+        lastSealed = current.committed;
+        current = null;
+        lock.notifyAll();
+    }
+
+    // batch buffers are reused; a write larger than a batch gets a buffer of its own
+    private ByteBuffer takeBuffer(int length) {
+        if (length > maxBatchBytes)
+            return ByteBuffer.allocateDirect(length);
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(maxBatchBytes);
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                List<Batch> batches;
+                synchronized (lock) {
+                    while (sealed.isEmpty()) {
+                        if (current != null) {
+                            long wait = current.openedAt + maxDelayNanos - System.nanoTime();
+                            if (wait <= 0 || closed)
+                                seal();
+                            else
+                                lock.wait(wait / 1_000_000, (int) (wait % 1_000_000));
+                        } else if (closed) {
+                            return;
+                        } else {
+                            lock.wait();
+                        }
+                    }
+                    batches = new ArrayList<>(sealed);
+                    sealed.clear();
+                    lock.notifyAll(); // appenders waiting for room
+                }
+                commit(batches);
+            }
+        } catch (InterruptedException e) {
+            // nothing will commit the writes that are still waiting
+        } finally {
+            failPending();
+        }
+    }
+
+    // once the flusher is gone: no new writes, and the ones that were waiting fail
+    private void failPending() {
+        IllegalStateException stopped = new IllegalStateException("Group commit flusher stopped");
+        synchronized (lock) {
+            closed = true;
+            if (current != null)
+                seal();
+            for (Batch batch : sealed) {
+                for (CompletableFuture<Long> future : batch.futures)
+                    future.completeExceptionally(stopped);
+                batch.committed.completeExceptionally(stopped);
+            }
+            sealed.clear();
+            lock.notifyAll();
+        }
+    }
+
+    // one append per batch and one force for all of them
+    private void commit(List<Batch> batches) {
+        long[] positions = new long[batches.size()];
+        try {
+            for (int i = 0; i < batches.size(); i++) {
+                ByteBuffer buffer = batches.get(i).buffer;
+                buffer.flip();
+                positions[i] = wrappedDS.append(buffer);
+            }
+            wrappedDS.force();
+            commits.incrementAndGet();
+            for (int i = 0; i < batches.size(); i++) {
+                Batch batch = batches.get(i);
+                for (int w = 0; w < batch.futures.size(); w++)
+                    batch.futures.get(w).complete(positions[i] + batch.offsets.get(w));
+                batch.committed.complete(null);
+            }
+        } catch (RuntimeException | Error e) {
+            for (Batch batch : batches) {
+                for (CompletableFuture<Long> future : batch.futures)
+                    future.completeExceptionally(e);
+                batch.committed.completeExceptionally(e);
+            }
+            if (e instanceof Error)
+                throw e;
+        }
+        synchronized (lock) {
+            // a later flush() that seals nothing new must not see this commit's outcome
+            if (lastSealed != null && lastSealed.isDone())
+                lastSealed = null;
+            for (Batch batch : batches) {
+                if (batch.buffer.capacity() == maxBatchBytes && freeBuffers.size() < 4) {
+                    batch.buffer.clear();
+                    freeBuffers.add(batch.buffer);
+                }
+            }
+        }
+    }
+}
+
+public class BufferingDecoratorDemo {
+    private static final int THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        Path directFile = Files.createTempFile("direct", ".log");
+        FileDataSource direct = new FileDataSource(directFile.toString());
+        long nanos = run(THREADS, 200, record -> {
+            synchronized (direct) {
+                long offset = direct.append(record);
+                direct.force();
+                return offset;
+            }
+        });
+        System.out.println(String.format("FileDataSource append + force:    %8.0f durable appends/s",
+                THREADS * 200 * 1e9 / nanos));
+
+        // a delay of 0 commits whenever the flusher is free: writes only batch up behind a running
+        // commit. A delay gathers more writes per force, which pays off when the force is slow.
+        Path bufferedFile = Files.createTempFile("buffered", ".log");
+        for (long maxDelayMillis : new long[]{0, 2}) {
+            Files.write(bufferedFile, new byte[0]);
+            try (BufferingDecorator buffered = new BufferingDecorator(new FileDataSource(bufferedFile.toString()), 64 * 1024, maxDelayMillis)) {
+                List<Long> offsets = new ArrayList<>();
+                nanos = run(THREADS, 2000, record -> {
+                    long offset = buffered.appendAsync(record).join();
+                    synchronized (offsets) {
+                        offsets.add(offset);
+                    }
+                    return offset;
+                });
+                System.out.println(String.format("BufferingDecorator, %d ms delay: %8.0f durable appends/s, %.1f appends per commit",
+                        maxDelayMillis, THREADS * 2000 * 1e9 / nanos, (double) buffered.getAppends() / buffered.getCommits()));
+
+                // every record is where its future said it is
+                ByteBuffer content = buffered.readBuffer();
+                int misplaced = 0;
+                for (long offset : offsets)
+                    if (content.get((int) offset) != (byte) 'r')
+                        misplaced++;
+                System.out.println(String.format("%d records in %d KB, misplaced: %d",
+                        offsets.size(), content.remaining() >> 10, misplaced));
+            }
+        }
+
+        try {
+            new CompressionDecorator(new FileDataSource(bufferedFile.toString())).append(ByteBuffer.allocate(1));
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Append below a compressing decorator: " + e.getMessage());
+        }
+
+        Files.delete(directFile);
+        Files.delete(bufferedFile);
+    }
+
+    interface Appender {
+        long append(ByteBuffer record);
+    }
+
+    private static long run(int threads, int recordsPerThread, Appender appender) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < recordsPerThread; i++)
+                    appender.append(StandardCharsets.UTF_8.encode("record " + id + "-" + i + "\n"));
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RoundSocket.fits(RoundPowerPlug) answers the question for one plug and one socket, and every
+ * SquarePowerPlug needs its own SquarePowerPlugAdapter first. Matching n plugs against m sockets
+ * that way is O(n * m) fits calls plus one adapter per square plug.
+ *
+ * BulkSocketMatcher works on plain int arrays instead:
+ * - square widths are converted inline with the same rule as the adapter (radius = width / 2),
+ *   so no adapter object is created
+ * - sockets and plugs are sorted once (key and original index packed into one long)
+ * - smallestFitting: binary search for the smallest socket that fits each plug (sockets shared)
+ * - assign: two-pointer merge where each socket takes at most one plug; walking the plugs from
+ *   small to large and giving each the smallest free socket that fits matches as many plugs as possible
+ *
+ * Both are O((n + m) log(n + m)).
+ */
+class BulkSocketMatcher {
+
+    public static final int NO_SOCKET = -1;
+
+    // plug radii: round plugs first, then the square plugs converted like SquarePowerPlugAdapter does
+    static int[] plugRadii(int[] roundPlugRadii, int[] squarePlugWidths) {
+        int[] radii = Arrays.copyOf(roundPlugRadii, roundPlugRadii.length + squarePlugWidths.length);
+        for (int i = 0; i < squarePlugWidths.length; i++)
+            radii[roundPlugRadii.length + i] = squarePlugWidths[i] / 2; // radius is = (side of the square/2)
+        return radii;
+    }
+
+    // for each plug, the index of the smallest socket it fits, or NO_SOCKET; sockets can be reused
+    public static int[] smallestFitting(int[] socketRadii, int[] roundPlugRadii, int[] squarePlugWidths) {
+        long[] sockets = sortedByKey(socketRadii);
+        int[] plugs = plugRadii(roundPlugRadii, squarePlugWidths);
+        int[] result = new int[plugs.length];
+        for (int p = 0; p < plugs.length; p++) {
+            int at = firstAtLeast(sockets, plugs[p]);
+            result[p] = at < sockets.length ? index(sockets[at]) : NO_SOCKET;
+        }
+        return result;
+    }
+
+    // for each plug, the socket assigned to it, or NO_SOCKET; every socket takes at most one plug
+    public static int[] assign(int[] socketRadii, int[] roundPlugRadii, int[] squarePlugWidths) {
+        long[] sockets = sortedByKey(socketRadii);
+        long[] plugs = sortedByKey(plugRadii(roundPlugRadii, squarePlugWidths));
+        int[] result = new int[plugs.length];
+        Arrays.fill(result, NO_SOCKET);
+
+        int s = 0;
+        for (long plug : plugs) {
+            while (s < sockets.length && key(sockets[s]) < key(plug))
+                s++;
+            if (s == sockets.length)
+                break; // every remaining plug is at least as big, none of them fits
+            result[index(plug)] = index(sockets[s++]);
+        }
+        return result;
+    }
+
+    // radius in the high 32 bits, original position in the low 32 bits
+    private static long[] sortedByKey(int[] keys) {
+        long[] packed = new long[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            packed[i] = ((long) keys[i] << 32) | i;
+        Arrays.sort(packed);
+        return packed;
+    }
+
+    private static int firstAtLeast(long[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key(sorted[mid]) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static int key(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    private static int index(long packed) {
+        return (int) packed;
+    }
+}
+
+public class BulkSocketMatcherDemo {
+    public static void main(String[] args) {
+        int[] sockets = {5, 12, 8};
+        int[] roundPlugs = {5, 9};
+        int[] squarePlugs = {10, 20};
+
+        int[] assigned = BulkSocketMatcher.assign(sockets, roundPlugs, squarePlugs);
+        int[] radii = BulkSocketMatcher.plugRadii(roundPlugs, squarePlugs);
+        for (int p = 0; p < assigned.length; p++) {
+            String plug = p < roundPlugs.length
+                    ? "RoundPowerPlug of radius: " + roundPlugs[p]
+                    : "SquarePowerPlug of width: " + squarePlugs[p - roundPlugs.length];
+            System.out.println(assigned[p] == BulkSocketMatcher.NO_SOCKET
+                    ? plug + " -- fits no free RoundSocket"
+                    : String.format("%s -- fits RoundSocket of radius (%s) : %s", plug, sockets[assigned[p]],
+                    new RoundSocket(sockets[assigned[p]]).fits(new RoundPowerPlug(radii[p]))));
+        }
+
+        // pairwise fits() with adapters vs. the bulk matcher
+        Random random = new Random(42);
+        int n = 10_000;
+        int[] manySockets = random.ints(n, 1, 1000).toArray();
+        int[] manyRound = random.ints(n / 2, 1, 1000).toArray();
+        int[] manySquare = random.ints(n / 2, 2, 2000).toArray();
+
+        long start = System.nanoTime();
+        int pairwiseFits = 0;
+        for (int socket : manySockets) {
+            RoundSocket roundSocket = new RoundSocket(socket);
+            for (int radius : manyRound)
+                if (roundSocket.fits(new RoundPowerPlug(radius)))
+                    pairwiseFits++;
+            for (int width : manySquare)
+                if (roundSocket.fits(new SquarePowerPlugAdapter(new SquarePowerPlug(width))))
+                    pairwiseFits++;
+        }
+        System.out.println(String.format("Pairwise fits(): %d fitting pairs in %d ms",
+                pairwiseFits, (System.nanoTime() - start) / 1_000_000));
+
+        start = System.nanoTime();
+        int[] result = BulkSocketMatcher.assign(manySockets, manyRound, manySquare);
+        long matched = Arrays.stream(result).filter(s -> s != BulkSocketMatcher.NO_SOCKET).count();
+        System.out.println(String.format("Bulk assign: %d of %d plugs matched in %d ms",
+                matched, result.length, (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,219 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A read cache for a DataSource chain.
+ *
+ * Placed on top of the compression and encryption decorators, it keeps decoded fixed-size
+ * blocks of the content. A readBuffer(position, length) only asks the wrapped chain for the
+ * blocks it does not have, so a hot region is inflated and decrypted once instead of on every read.
+ *
+ * - the cache is an access-ordered LinkedHashMap (LRU) bounded by the bytes it holds, not by
+ *   the number of entries, because the last block is usually shorter
+ * - blocks are loaded outside the lock; two threads missing the same block may both load it.
+ *   Every invalidation bumps a generation counter, and a loaded block (or size) is only kept if
+ *   the generation did not change while it was loading, so a load that raced with a write
+ *   cannot put the old bytes back into the cache
+ * - hits, misses and evictions are counted in LongAdders, which stay cheap under contention
+ * - a read of a single block returns a read-only view of the cached block, no copy
+ * - writeBuffer empties the cache, append drops the (possibly partial) last block
+ *
+ * The cache only sees writes that go through it.
+ */
+class CachingDecorator extends DataSourceDecorator {
+
+    private final int blockSize;
+    private final long maxBytes;
+    private final LinkedHashMap<Long, ByteBuffer> blocks = new LinkedHashMap<>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long cachedBytes;
+    private long size = -1;
+    private long generation;
+
+    public CachingDecorator(DataSource wrappedDS, int blockSize, long maxBytes) {
+        super(wrappedDS);
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public long size() {
+        long seen;
+        synchronized (blocks) {
+            if (size >= 0)
+                return size;
+            seen = generation;
+        }
+        long loaded = wrappedDS.size();
+        synchronized (blocks) {
+            if (generation == seen)
+                size = loaded;
+        }
+        return loaded;
+    }
+
+    @Override
+    public ByteBuffer readBuffer() {
+        long length = size();
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too large for one buffer: " + length + " bytes");
+        return readBuffer(0, (int) length);
+    }
+
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        long end = Math.min(size(), position + length);
+        if (position >= end)
+            return ByteBuffer.allocate(0);
+        long first = position / blockSize;
+        long last = (end - 1) / blockSize;
+        if (first == last) {
+            ByteBuffer block = block(first);
+            block.position((int) (position - first * blockSize));
+            block.limit((int) (end - first * blockSize));
+            return block.slice();
+        }
+        ByteBuffer result = ByteBuffer.allocate((int) (end - position));
+        for (long index = first; index <= last; index++) {
+            ByteBuffer block = block(index);
+            long blockStart = index * blockSize;
+            block.position((int) (Math.max(position, blockStart) - blockStart));
+            block.limit((int) (Math.min(end, blockStart + block.limit()) - blockStart));
+            result.put(block);
+        }
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer data) {
+        try {
+            wrappedDS.writeBuffer(data);
+        } finally {
+            synchronized (blocks) {
+                blocks.clear();
+                cachedBytes = 0;
+                size = -1;
+                generation++;
+            }
+        }
+    }
+
+    @Override
+    public long append(ByteBuffer data) {
+        long position = wrappedDS.append(data);
+        synchronized (blocks) {
+            ByteBuffer partial = blocks.remove(position / blockSize);
+            if (partial != null)
+                cachedBytes -= partial.capacity();
+            size = -1;
+            generation++;
+        }
+        return position;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        synchronized (blocks) {
+            return cachedBytes;
+        }
+    }
+
+    // a read-only duplicate of the cached block, loaded from the wrapped source on a miss
+    private ByteBuffer block(long index) {
+        long seen;
+        synchronized (blocks) {
+            ByteBuffer cached = blocks.get(index);
+            if (cached != null) {
+                hits.increment();
+                return cached.duplicate();
+            }
+            seen = generation;
+        }
+        misses.increment();
+        ByteBuffer loaded = wrappedDS.readBuffer(index * blockSize, blockSize);
+        // a private copy: the wrapped source may hand out views of buffers it reuses
+        ByteBuffer block = ByteBuffer.allocate(loaded.remaining());
+        block.put(loaded);
+        block.flip();
+        block = block.asReadOnlyBuffer();
+        synchronized (blocks) {
+            if (generation == seen) {
+                ByteBuffer previous = blocks.put(index, block);
+                cachedBytes += block.capacity() - (previous != null ? previous.capacity() : 0);
+                evict();
+            }
+        }
+        return block.duplicate();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, ByteBuffer>> eldest = blocks.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+}
+
+public class CachingDecoratorDemo {
+    public static void main(String[] args) throws IOException {
+        byte[] bytes = new byte[32 * 1024 * 1024];
+        Random random = new Random(5);
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) ('a' + random.nextInt(6));
+
+        Path file = Files.createTempFile("cached", ".dat");
+        DataSource chain = new CompressionDecorator(new EncryptionDecorator(new FileDataSource(file.toString()), ChunkCipher.newKey()));
+        chain.writeBuffer(ByteBuffer.wrap(bytes));
+        CachingDecorator cached = new CachingDecorator(chain, 256 * 1024, 4 * 1024 * 1024);
+
+        // 90% of the reads hit a 2 MB hot region, the rest are spread over the whole 32 MB
+        long[] positions = new long[2000];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = random.nextInt(10) < 9 ? random.nextInt(2 * 1024 * 1024) : random.nextInt(bytes.length - 4096);
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (long position : positions)
+                chain.readBuffer(position, 4096);
+            long uncachedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long position : positions)
+                cached.readBuffer(position, 4096);
+            long cachedNanos = System.nanoTime() - start;
+            System.out.println(String.format("%d reads of 4 KB: decoded every time %d ms, through the cache %d ms",
+                    positions.length, uncachedNanos / 1_000_000, cachedNanos / 1_000_000));
+        }
+        System.out.println(String.format("hits: %d, misses: %d, evictions: %d, cached: %d KB",
+                cached.getHits(), cached.getMisses(), cached.getEvictions(), cached.getCachedBytes() >> 10));
+
+        ByteBuffer expected = ByteBuffer.wrap(bytes, 1_000_000, 700_000);
+        System.out.println("Range across blocks equal: " + cached.readBuffer(1_000_000, 700_000).equals(expected));
+        System.out.println("Whole content equal: " + cached.readBuffer().equals(ByteBuffer.wrap(bytes)));
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,318 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A result cache for the video converter facade.
+ *
+ * Converting the same video to the same format twice gives the same bytes, so the result is
+ * kept under a key made of the SHA-256 of the input content, the source codec (the input's
+ * extension, since the same bytes decode differently as ogg and as mp4) and the target format.
+ * The key does not depend on the rest of the file name or on its modification time: a renamed
+ * copy of a video is a hit, a video changed in place is a miss.
+ *
+ * - results are files in the cache directory, named <hash>-<source codec>.<format>; the
+ *   directory is the (only) tier, so the cache survives a restart and is rebuilt from it on
+ *   construction
+ * - the cache is an access-ordered LinkedHashMap (LRU) bounded by the bytes of the files;
+ *   a hit also touches the file, so the order is kept across restarts by modification time
+ * - concurrent requests for the same key are coalesced: the first one converts, the others
+ *   wait on its CompletableFuture in a ConcurrentHashMap and then copy the result
+ * - entries are written to a temporary file and moved into place, so a reader never sees a
+ *   partial result; callers get their own copy at the usual target, never the cached file
+ *
+ * Hashing reads the input once through MappedBitrateReader, which is much cheaper than a
+ * conversion. A result larger than the whole cache is returned but not kept.
+ */
+class CachingVideoConverter extends VideoConverter {
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long cachedBytes;
+
+    public CachingVideoConverter(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, 1024 * 1024, Runtime.getRuntime().availableProcessors(), 8);
+    }
+
+    public CachingVideoConverter(Path directory, long maxBytes, int chunkSize, int workersPerStage, int queueCapacity) throws IOException {
+        super(chunkSize, workersPerStage, queueCapacity);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    @Override
+    public File convert(String filename, String format) throws IOException {
+        VideoFile file = new VideoFile(filename);
+        Path target = targetFor(file, format);
+        String key = hash(file.getPath()) + "-" + CodecFactory.extract(file).getType() + "." + format;
+
+        Path cached = lookup(key);
+        if (cached != null && deliver(cached, target)) {
+            hits.increment();
+            return target.toFile();
+        }
+
+        CompletableFuture<Path> conversion = new CompletableFuture<>();
+        CompletableFuture<Path> running = inFlight.putIfAbsent(key, conversion);
+        if (running != null) {
+            coalesced.increment();
+            if (deliver(await(running), target))
+                return target.toFile();
+            return convert(filename, format); // evicted in between
+        }
+        try {
+            cached = lookup(key); // stored by a conversion that finished after the first lookup
+            if (cached != null && deliver(cached, target)) {
+                hits.increment();
+                conversion.complete(cached);
+                return target.toFile();
+            }
+            misses.increment();
+            File result = super.convert(filename, format);
+            conversion.complete(store(key, result.toPath()));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            conversion.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, conversion);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        synchronized (entries) {
+            return cachedBytes;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (MappedBitrateReader reader = new MappedBitrateReader(file, 4 * 1024 * 1024)) {
+            while (reader.hasNext())
+                digest.update(reader.next());
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // the cached file for key, marked as most recently used; null on a miss
+    private Path lookup(String key) throws IOException {
+        synchronized (entries) {
+            if (entries.get(key) == null)
+                return null;
+        }
+        Path entry = directory.resolve(key);
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return entry;
+    }
+
+    private Path store(String key, Path result) throws IOException {
+        long size = Files.size(result);
+        Path entry = directory.resolve(key);
+        if (size > maxBytes)
+            return result;
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        Files.copy(result, temporary, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        synchronized (entries) {
+            Long previous = entries.put(key, size);
+            cachedBytes += size - (previous != null ? previous : 0);
+            evict(key);
+        }
+        return entry;
+    }
+
+    // copies a result to target; false if it was evicted before the copy could start
+    private static boolean deliver(Path result, Path target) throws IOException {
+        if (result.equals(target))
+            return true;
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(result, temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // least recently used first; the entry just stored is kept
+    private void evict(String keep) throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(keep))
+                continue;
+            Files.deleteIfExists(directory.resolve(entry.getKey()));
+            cachedBytes -= entry.getValue();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    // rebuilds the LRU order from the modification times; leftovers of interrupted stores are removed
+    private void load() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(".tmp"))
+                    Files.delete(file);
+                else
+                    files.add(file);
+            }
+        }
+        files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        synchronized (entries) {
+            for (Path file : files) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                cachedBytes += size;
+            }
+            evict(null);
+        }
+    }
+}
+
+public class CachingVideoConverterDemo {
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("videos");
+        Path cacheDirectory = Files.createTempDirectory("converted");
+        int size = 16 * 1024 * 1024;
+        Path[] videos = new Path[3];
+        for (int i = 0; i < videos.length; i++) {
+            byte[] content = new byte[size];
+            new Random(i).nextBytes(content);
+            videos[i] = directory.resolve("video-" + i + ".ogg");
+            Files.write(videos[i], content);
+        }
+
+        // room for two results
+        CachingVideoConverter converter = new CachingVideoConverter(cacheDirectory, 2L * size + 1024);
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            File mp4 = converter.convert(videos[0].toString(), "mp4");
+            System.out.println(String.format("%s: %d ms", round == 0 ? "Converted" : "From the cache",
+                    (System.nanoTime() - start) / 1_000_000));
+            Files.delete(mp4.toPath());
+        }
+
+        // the key is the content: a renamed copy is a hit
+        Path copy = directory.resolve("copy-of-video-0.ogg");
+        Files.copy(videos[0], copy);
+        byte[] converted = Files.readAllBytes(converter.convert(copy.toString(), "mp4").toPath());
+        byte[] direct = Files.readAllBytes(new VideoConverter().convert(videos[0].toString(), "mp4").toPath());
+        System.out.println("Renamed copy from the cache, same as converting: " + Arrays.equals(converted, direct));
+
+        // eight threads asking for the same new result: one conversion
+        long misses = converter.getMisses();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<File>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            results.add(threads.submit(() -> converter.convert(videos[1].toString(), "mp4")));
+        for (Future<File> result : results)
+            result.get();
+        threads.shutdown();
+        System.out.println(String.format("8 concurrent requests: %d conversion(s), %d coalesced",
+                converter.getMisses() - misses, converter.getCoalesced()));
+
+        // a third result evicts the least recently used one, video 0
+        converter.convert(videos[2].toString(), "mp4");
+        System.out.println(String.format("After a third video: %d entries, %d MB, evictions %d",
+                converter.getEntryCount(), converter.getCachedBytes() >> 20, converter.getEvictions()));
+
+        // the directory is the cache: a new converter picks the entries up
+        CachingVideoConverter reopened = new CachingVideoConverter(cacheDirectory, 2L * size + 1024);
+        int entries = reopened.getEntryCount();
+        reopened.convert(videos[2].toString(), "mp4");
+        reopened.convert(videos[0].toString(), "mp4");
+        System.out.println(String.format("Reopened with %d entries: hits %d, misses %d",
+                entries, reopened.getHits(), reopened.getMisses()));
+
+        for (Path dir : new Path[]{directory, cacheDirectory}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+}
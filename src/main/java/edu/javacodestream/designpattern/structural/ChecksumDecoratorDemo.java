@@ -0,0 +1,344 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Integrity checks and per-layer throughput for a DataSource chain.
+ *
+ * ChecksumDecorator writes the data unchanged, followed by a checksum of every fixed-size block
+ * and a trailer (little endian):
+ *
+ *   data | checksum of each block (n ints) | data length (long) | block size (int) |
+ *   block count (int) | algorithm (int) | magic (int)
+ *
+ * and verifies the checksums of every block it reads. Because the data stays in front, a ranged
+ * read only fetches and verifies the blocks the range falls in.
+ *
+ * The checksum is CRC32C where the JDK has it (java.util.zip.CRC32C, Java 9 and later), loaded
+ * reflectively since this code targets Java 8, and CRC32 otherwise. The algorithm is recorded
+ * in the trailer, so data written with either one is verified with the right one.
+ *
+ * Given an IoMetrics layer, the decorator also records the bytes and nanoseconds of each read
+ * and write, including the time spent below it. Put one at several levels of a chain and
+ * IoMetrics.report() shows how much of the time each level adds on its own.
+ */
+class ChecksumDecorator extends DataSourceDecorator {
+
+    static final int MAGIC = 0x43524342; // "CRCB"
+    static final int TRAILER_BYTES = 8 + 4 + 4 + 4 + 4;
+
+    private final int blockSize;
+    private final IoMetrics.Layer metrics;
+
+    public ChecksumDecorator(DataSource wrappedDS) {
+        this(wrappedDS, 64 * 1024, null);
+    }
+
+    public ChecksumDecorator(DataSource wrappedDS, int blockSize, IoMetrics.Layer metrics) {
+        super(wrappedDS);
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        this.blockSize = blockSize;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer data) {
+        long start = System.nanoTime();
+        int length = data.remaining();
+        int blocks = (length + blockSize - 1) / blockSize;
+        BlockChecksum checksum = BlockChecksum.preferred();
+        ByteBuffer out = ByteBuffer.allocate(length + blocks * 4 + TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(data.duplicate());
+        for (int block = 0; block < blocks; block++)
+            out.putInt(checksum.of(slice(data, block * blockSize, Math.min(blockSize, length - block * blockSize))));
+        out.putLong(length).putInt(blockSize).putInt(blocks).putInt(checksum.id).putInt(MAGIC);
+        out.flip();
+        wrappedDS.writeBuffer(out);
+        if (metrics != null)
+            metrics.recordWrite(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public ByteBuffer readBuffer() {
+        long start = System.nanoTime();
+        ByteBuffer all = wrappedDS.readBuffer();
+        Trailer trailer = Trailer.read(all.remaining(), (position, length) -> slice(all, (int) position, length));
+        int dataLength = Math.toIntExact(trailer.dataLength); // the whole buffer fits in an int
+        ByteBuffer data = slice(all, 0, dataLength);
+        verify(trailer, data, 0, trailer.blockCount, slice(all, dataLength, trailer.blockCount * 4));
+        if (metrics != null)
+            metrics.recordRead(data.remaining(), System.nanoTime() - start);
+        return data;
+    }
+
+    @Override
+    public long size() {
+        return Trailer.read(wrappedDS.size(), wrappedDS::readBuffer).dataLength;
+    }
+
+    // fetches and verifies only the blocks the range falls in
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        long start = System.nanoTime();
+        Trailer trailer = Trailer.read(wrappedDS.size(), wrappedDS::readBuffer);
+        long end = Math.min(trailer.dataLength, position + length);
+        if (position >= end)
+            return ByteBuffer.allocate(0);
+        int first = (int) (position / trailer.blockSize);
+        int last = (int) ((end - 1) / trailer.blockSize);
+        long spanStart = (long) first * trailer.blockSize;
+        long spanEnd = Math.min(trailer.dataLength, (long) (last + 1) * trailer.blockSize);
+        ByteBuffer span = wrappedDS.readBuffer(spanStart, (int) (spanEnd - spanStart));
+        ByteBuffer checksums = wrappedDS.readBuffer(trailer.dataLength + first * 4L, (last - first + 1) * 4);
+        verify(trailer, span, first, last + 1, checksums);
+        ByteBuffer range = slice(span, (int) (position - spanStart), (int) (end - position));
+        if (metrics != null)
+            metrics.recordRead(range.remaining(), System.nanoTime() - start);
+        return range;
+    }
+
+    // blocks [first, last) of the data, which starts at block first
+    private static void verify(Trailer trailer, ByteBuffer data, int first, int last, ByteBuffer checksums) {
+        BlockChecksum checksum = BlockChecksum.byId(trailer.algorithm);
+        ByteBuffer expected = checksums.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for (int block = first; block < last; block++) {
+            int from = (block - first) * trailer.blockSize;
+            ByteBuffer bytes = slice(data, from, Math.min(trailer.blockSize, data.remaining() - from));
+            if (checksum.of(bytes) != expected.getInt(expected.position() + (block - first) * 4))
+                throw new IllegalStateException("Block " + block + " failed its " + checksum.name + " check");
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(buffer.position() + from);
+        slice.limit(slice.position() + length);
+        return slice.slice();
+    }
+
+    private static final class Trailer {
+        final long dataLength;
+        final int blockSize;
+        final int blockCount;
+        final int algorithm;
+
+        private Trailer(long dataLength, int blockSize, int blockCount, int algorithm) {
+            this.dataLength = dataLength;
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            this.algorithm = algorithm;
+        }
+
+        // the fields are checked against each other and the total length before anything is sliced
+        static Trailer read(long totalLength, RangeReader reader) {
+            if (totalLength < TRAILER_BYTES)
+                throw new IllegalStateException("Not checksummed data: too short");
+            ByteBuffer trailer = reader.read(totalLength - TRAILER_BYTES, TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            int at = trailer.position();
+            if (trailer.getInt(at + 20) != MAGIC)
+                throw new IllegalStateException("Not checksummed data: bad magic");
+            long dataLength = trailer.getLong(at);
+            int blockSize = trailer.getInt(at + 8);
+            int blockCount = trailer.getInt(at + 12);
+            if (dataLength < 0 || blockSize <= 0 || blockCount < 0)
+                throw new IllegalStateException("Corrupt trailer: data length " + dataLength
+                        + ", block size " + blockSize + ", block count " + blockCount);
+            if (blockCount != (dataLength + blockSize - 1) / blockSize)
+                throw new IllegalStateException("Corrupt trailer: " + blockCount + " blocks for "
+                        + dataLength + " bytes in blocks of " + blockSize);
+            if (dataLength + 4L * blockCount + TRAILER_BYTES != totalLength)
+                throw new IllegalStateException("Corrupt trailer: " + dataLength + " bytes and "
+                        + blockCount + " checksums do not add up to " + totalLength);
+            return new Trailer(dataLength, blockSize, blockCount, trailer.getInt(at + 16));
+        }
+    }
+}
+
+// CRC32C when the runtime has it, CRC32 otherwise
+final class BlockChecksum {
+    static final int CRC32_ID = 1;
+    static final int CRC32C_ID = 2;
+
+    private static final BlockChecksum CRC32_CHECKSUM = new BlockChecksum(CRC32_ID, "CRC32", null, null);
+    private static final BlockChecksum CRC32C_CHECKSUM = loadCrc32c();
+
+    final int id;
+    final String name;
+    private final MethodHandle create; // () Checksum
+    private final MethodHandle update; // (Checksum, ByteBuffer) void
+
+    private BlockChecksum(int id, String name, MethodHandle create, MethodHandle update) {
+        this.id = id;
+        this.name = name;
+        this.create = create;
+        this.update = update;
+    }
+
+    static BlockChecksum preferred() {
+        return CRC32C_CHECKSUM != null ? CRC32C_CHECKSUM : CRC32_CHECKSUM;
+    }
+
+    static BlockChecksum byId(int id) {
+        if (id == CRC32_ID)
+            return CRC32_CHECKSUM;
+        if (id == CRC32C_ID && CRC32C_CHECKSUM != null)
+            return CRC32C_CHECKSUM;
+        throw new IllegalStateException("Checksum algorithm " + id + " is not available");
+    }
+
+    int of(ByteBuffer bytes) {
+        if (create == null) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes.duplicate());
+            return (int) crc.getValue();
+        }
+        try {
+            Checksum crc = (Checksum) create.invokeExact();
+            update.invokeExact(crc, bytes.duplicate());
+            return (int) crc.getValue();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not compute " + name, e);
+        }
+    }
+
+    private static BlockChecksum loadCrc32c() {
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle create = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            MethodHandle update = lookup
+                    .findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+            return new BlockChecksum(CRC32C_ID, "CRC32C", create, update);
+        } catch (ReflectiveOperationException e) {
+            return null; // Java 8
+        }
+    }
+}
+
+/**
+ * Bytes and nanoseconds per layer of a DataSource chain, in LongAdders so that recording from
+ * many threads stays cheap. Layers are listed from the outermost to the innermost; the time of
+ * a layer includes the layers below it, so report() also shows each layer's own share.
+ */
+class IoMetrics {
+
+    final class Layer {
+        final String name;
+        final LongAdder writeBytes = new LongAdder();
+        final LongAdder writeNanos = new LongAdder();
+        final LongAdder readBytes = new LongAdder();
+        final LongAdder readNanos = new LongAdder();
+
+        private Layer(String name) {
+            this.name = name;
+        }
+
+        void recordWrite(long bytes, long nanos) {
+            writeBytes.add(bytes);
+            writeNanos.add(nanos);
+        }
+
+        void recordRead(long bytes, long nanos) {
+            readBytes.add(bytes);
+            readNanos.add(nanos);
+        }
+    }
+
+    private final List<Layer> layers = new CopyOnWriteArrayList<>();
+
+    // call from the outermost layer inwards
+    public Layer layer(String name) {
+        Layer layer = new Layer(name);
+        layers.add(layer);
+        return layer;
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-12s %10s %10s %10s %10s %10s %10s%n",
+                "layer", "write MB", "write ms", "own ms", "read MB", "read ms", "own ms"));
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            Layer below = i + 1 < layers.size() ? layers.get(i + 1) : null;
+            long writeNanos = layer.writeNanos.sum();
+            long readNanos = layer.readNanos.sum();
+            report.append(String.format("%-12s %10d %10d %10d %10d %10d %10d%n", layer.name,
+                    layer.writeBytes.sum() >> 20, writeNanos / 1_000_000,
+                    (writeNanos - (below == null ? 0 : below.writeNanos.sum())) / 1_000_000,
+                    layer.readBytes.sum() >> 20, readNanos / 1_000_000,
+                    (readNanos - (below == null ? 0 : below.readNanos.sum())) / 1_000_000));
+        }
+        return report.toString();
+    }
+}
+
+public class ChecksumDecoratorDemo {
+    public static void main(String[] args) throws IOException {
+        byte[] bytes = new byte[32 * 1024 * 1024];
+        Random random = new Random(9);
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) ('a' + random.nextInt(6));
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        System.out.println("Checksum: " + BlockChecksum.preferred().name);
+
+        // a checksum above every decorator; the own time of each layer is its checksum plus
+        // the decorator right below it
+        IoMetrics metrics = new IoMetrics();
+        IoMetrics.Layer compressionLayer = metrics.layer("compression");
+        IoMetrics.Layer encryptionLayer = metrics.layer("encryption");
+        IoMetrics.Layer fileLayer = metrics.layer("file");
+        Path file = Files.createTempFile("checked", ".dat");
+        DataSource chain = new ChecksumDecorator(
+                new CompressionDecorator(
+                        new ChecksumDecorator(
+                                new EncryptionDecorator(
+                                        new ChecksumDecorator(new FileDataSource(file.toString()), 64 * 1024, fileLayer),
+                                        ChunkCipher.newKey()),
+                                64 * 1024, encryptionLayer)),
+                64 * 1024, compressionLayer);
+        for (int round = 0; round < 3; round++) {
+            chain.writeBuffer(data);
+            chain.readBuffer();
+        }
+        System.out.print(metrics.report());
+        System.out.println("Range read equal: " + chain.readBuffer(5_000_000, 100_000).equals(ByteBuffer.wrap(bytes, 5_000_000, 100_000)));
+
+        // flip one bit of the data on disk
+        Path rawFile = Files.createTempFile("raw", ".dat");
+        DataSource checked = new ChecksumDecorator(new FileDataSource(rawFile.toString()));
+        checked.writeBuffer(data);
+        try (FileChannel channel = FileChannel.open(rawFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, 1_000_000);
+            one.put(0, (byte) (one.get(0) ^ 1));
+            one.rewind();
+            channel.write(one, 1_000_000);
+        }
+        try {
+            checked.readBuffer();
+        } catch (IllegalStateException e) {
+            System.out.println("Corruption detected: " + e.getMessage());
+        }
+        System.out.println("Undamaged range still readable: " + checked.readBuffer(20_000_000, 1000).equals(ByteBuffer.wrap(bytes, 20_000_000, 1000)));
+
+        Files.delete(file);
+        Files.delete(rawFile);
+    }
+}
@@ -0,0 +1,446 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * The codec behind EncryptionDecorator: AES-GCM over independent fixed-size chunks.
+ *
+ *   header = magic (int) | chunk size (int) | stream id (long)
+ *   chunk  = ciphertext of up to chunk size bytes | 16 byte tag
+ *
+ * Every chunk has its own 12 byte nonce: the random stream id (drawn once per write) followed by
+ * the chunk index. The additional authenticated data is the chunk index and a "last chunk" flag,
+ * so chunks cannot be reordered, and dropping chunks from the end is detected too. Empty data
+ * still gets one (empty) last chunk.
+ *
+ * Chunks do not depend on each other, so whole buffers are encrypted and decrypted in parallel
+ * on the block worker pool, and decryptChunk(i) authenticates and decrypts a single chunk.
+ * Cipher instances are reused per thread; only init() runs per chunk. The Encoder produces the
+ * same layout one chunk at a time, for streams, and read(position, length) decrypts only the
+ * chunks a range falls in.
+ */
+class ChunkCipher {
+
+    static final int MAGIC = 0x41474331; // "AGC1"
+    static final int HEADER_BYTES = 4 + 4 + 8;
+    static final int TAG_BYTES = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+
+    private final SecretKey key;
+    private final int chunkSize;
+    private final ExecutorService workers;
+    private final int chunksPerTask;
+
+    public ChunkCipher(SecretKey key) {
+        this(key, 64 * 1024, BlockWorkers.shared());
+    }
+
+    public ChunkCipher(SecretKey key, int chunkSize, ExecutorService workers) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+        // about 1 MB of work per task, so a multi-GB buffer does not turn into millions of tasks
+        this.chunksPerTask = Math.max(1, (1 << 20) / chunkSize);
+    }
+
+    public static SecretKey newKey() {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            return generator.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    static long newStreamId() {
+        return RANDOM.nextLong();
+    }
+
+    static int chunkCount(long plainLength, int chunkSize) {
+        return (int) Math.max(1, (plainLength + chunkSize - 1) / chunkSize);
+    }
+
+    static long encryptedLength(long plainLength, int chunkSize) {
+        return HEADER_BYTES + plainLength + (long) chunkCount(plainLength, chunkSize) * TAG_BYTES;
+    }
+
+    public ByteBuffer encrypt(ByteBuffer data) {
+        long streamId = newStreamId();
+        int length = data.remaining();
+        long total = encryptedLength(length, chunkSize);
+        if (total > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too large for one buffer: " + total + " bytes");
+        ByteBuffer out = ByteBuffer.allocate((int) total);
+        writeHeader(out, chunkSize, streamId);
+
+        int chunks = chunkCount(length, chunkSize);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int first = 0; first < chunks; first += chunksPerTask) {
+            int from = first;
+            int to = Math.min(chunks, first + chunksPerTask);
+            tasks.add(workers.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    ByteBuffer plain = data.duplicate();
+                    plain.position(data.position() + i * chunkSize);
+                    plain.limit(Math.min(data.limit(), plain.position() + chunkSize));
+                    ByteBuffer target = out.duplicate();
+                    target.position(HEADER_BYTES + i * (chunkSize + TAG_BYTES));
+                    encryptChunk(streamId, i, i == chunks - 1, plain, target);
+                }
+            }));
+        }
+        awaitAll(tasks);
+        out.rewind();
+        return out;
+    }
+
+    public ByteBuffer decrypt(ByteBuffer encrypted) {
+        Header header = Header.of(encrypted);
+        int chunks = header.chunkCount(encrypted.remaining());
+        ByteBuffer out = ByteBuffer.allocate((int) header.plainLength(encrypted.remaining()));
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int first = 0; first < chunks; first += chunksPerTask) {
+            int from = first;
+            int to = Math.min(chunks, first + chunksPerTask);
+            tasks.add(workers.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    ByteBuffer target = out.duplicate();
+                    target.position(i * header.chunkSize);
+                    decryptChunk(header, encrypted, i, chunks, target);
+                }
+            }));
+        }
+        awaitAll(tasks);
+        return out;
+    }
+
+    public int chunkCount(ByteBuffer encrypted) {
+        return Header.of(encrypted).chunkCount(encrypted.remaining());
+    }
+
+    // random access: authenticates and decrypts only the given chunk
+    public ByteBuffer decryptChunk(ByteBuffer encrypted, int chunk) {
+        Header header = Header.of(encrypted);
+        int chunks = header.chunkCount(encrypted.remaining());
+        ByteBuffer out = ByteBuffer.allocate(header.chunkSize);
+        decryptChunk(header, encrypted, chunk, chunks, out);
+        out.flip();
+        return out;
+    }
+
+    public long plainLength(long encryptedLength, RangeReader reader) {
+        return Header.read(encryptedLength, reader).plainLength(encryptedLength);
+    }
+
+    // random access: length plain bytes (fewer at the end) from position, decrypting only the
+    // chunks they fall in; the encrypted data is only read through reader
+    public ByteBuffer read(long encryptedLength, RangeReader reader, long position, int length) {
+        Header header = Header.read(encryptedLength, reader);
+        int chunks = header.chunkCount(encryptedLength);
+        long end = Math.min(header.plainLength(encryptedLength), position + length);
+        if (position >= end)
+            return ByteBuffer.allocate(0);
+        ByteBuffer result = ByteBuffer.allocate((int) (end - position));
+        ByteBuffer plain = ByteBuffer.allocate(header.chunkSize);
+        for (int chunk = (int) (position / header.chunkSize); (long) chunk * header.chunkSize < end; chunk++) {
+            long chunkStart = (long) chunk * header.chunkSize;
+            ByteBuffer source = reader.read(HEADER_BYTES + (long) chunk * (header.chunkSize + TAG_BYTES),
+                    header.chunkSize + TAG_BYTES);
+            plain.clear();
+            decryptChunk(header, source, chunk, chunk == chunks - 1, plain);
+            plain.flip();
+            plain.position((int) (Math.max(position, chunkStart) - chunkStart));
+            plain.limit((int) (Math.min(end, chunkStart + plain.limit()) - chunkStart));
+            result.put(plain);
+        }
+        result.flip();
+        return result;
+    }
+
+    static void writeHeader(ByteBuffer out, int chunkSize, long streamId) {
+        out.order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC).putInt(chunkSize).putLong(streamId);
+        out.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    // encrypts plain (position to limit) into out at its position; both positions advance
+    void encryptChunk(long streamId, int chunk, boolean last, ByteBuffer plain, ByteBuffer out) {
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(streamId, chunk)));
+            cipher.updateAAD(aad(chunk, last));
+            cipher.doFinal(plain, out);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not encrypt chunk " + chunk, e);
+        }
+    }
+
+    private void decryptChunk(Header header, ByteBuffer encrypted, int chunk, int chunks, ByteBuffer out) {
+        if (chunk < 0 || chunk >= chunks)
+            throw new IndexOutOfBoundsException("Chunk " + chunk + " of " + chunks);
+        ByteBuffer source = encrypted.duplicate();
+        long start = HEADER_BYTES + (long) chunk * (header.chunkSize + TAG_BYTES);
+        source.position((int) (encrypted.position() + start));
+        source.limit((int) Math.min(encrypted.limit(), source.position() + (long) header.chunkSize + TAG_BYTES));
+        decryptChunk(header, source, chunk, chunk == chunks - 1, out);
+    }
+
+    // decrypts one chunk (ciphertext and tag, position to limit) into out at its position
+    private void decryptChunk(Header header, ByteBuffer source, int chunk, boolean last, ByteBuffer out) {
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(header.streamId, chunk)));
+            cipher.updateAAD(aad(chunk, last));
+            cipher.doFinal(source, out);
+        } catch (AEADBadTagException e) {
+            throw new IllegalStateException("Chunk " + chunk + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not decrypt chunk " + chunk, e);
+        }
+    }
+
+    private static byte[] nonce(long streamId, int chunk) {
+        return ByteBuffer.allocate(12).putLong(streamId).putInt(chunk).array();
+    }
+
+    private static byte[] aad(int chunk, boolean last) {
+        return ByteBuffer.allocate(5).putInt(chunk).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) {
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // a push-style encryptor, see Encoder
+    public Encoder encoder(WritableByteChannel downstream) throws IOException {
+        return new Encoder(downstream);
+    }
+
+    /**
+     * Writes the header right away, then collects what is written to it into one reused chunk
+     * buffer and encrypts into a second one. A full chunk is only encrypted once more data
+     * arrives (or on finish(), as the last chunk), which is what the "last" flag needs.
+     * The output is laid out exactly like encrypt().
+     */
+    final class Encoder implements WritableByteChannel {
+        private final WritableByteChannel downstream;
+        private final long streamId = newStreamId();
+        private final ByteBuffer pending = ByteBuffer.allocate(chunkSize);
+        private final ByteBuffer encrypted = ByteBuffer.allocate(chunkSize + TAG_BYTES);
+        private int chunk;
+        private boolean finished;
+
+        private Encoder(WritableByteChannel downstream) throws IOException {
+            this.downstream = downstream;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            writeHeader(header, chunkSize, streamId);
+            header.flip();
+            writeFully(header);
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (finished)
+                throw new ClosedChannelException();
+            int length = source.remaining();
+            while (source.hasRemaining()) {
+                if (!pending.hasRemaining())
+                    encryptPending(false);
+                int n = Math.min(source.remaining(), pending.remaining());
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + n);
+                pending.put(part);
+                source.position(source.position() + n);
+            }
+            return length;
+        }
+
+        public void finish() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            encryptPending(true);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !finished;
+        }
+
+        // downstream is only closed once finish() succeeded: closing a FileDataSource.Writer
+        // commits the file, so after a failure it is left open for the caller to abort
+        @Override
+        public void close() throws IOException {
+            finish();
+            downstream.close();
+        }
+
+        private void encryptPending(boolean last) throws IOException {
+            pending.flip();
+            encrypted.clear();
+            encryptChunk(streamId, chunk++, last, pending, encrypted);
+            pending.clear();
+            encrypted.flip();
+            writeFully(encrypted);
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                downstream.write(data);
+        }
+    }
+
+    static final class Header {
+        final int chunkSize;
+        final long streamId;
+
+        private Header(int chunkSize, long streamId) {
+            this.chunkSize = chunkSize;
+            this.streamId = streamId;
+        }
+
+        static Header of(ByteBuffer encrypted) {
+            return read(encrypted.remaining(), (position, length) -> encrypted.duplicate());
+        }
+
+        static Header read(long encryptedLength, RangeReader reader) {
+            if (encryptedLength < HEADER_BYTES)
+                throw new IllegalStateException("Not chunk-encrypted data: too short");
+            ByteBuffer data = reader.read(0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (data.remaining() < HEADER_BYTES || data.getInt(data.position()) != MAGIC)
+                throw new IllegalStateException("Not chunk-encrypted data");
+            int chunkSize = data.getInt(data.position() + 4);
+            if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE - TAG_BYTES)
+                throw new IllegalStateException("Corrupt chunk size: " + chunkSize);
+            // every stream has at least one chunk, so a body without room for its tag was truncated
+            if (encryptedLength - HEADER_BYTES < TAG_BYTES)
+                throw new IllegalStateException("Chunk 0 failed authentication: truncated");
+            return new Header(chunkSize, data.getLong(data.position() + 8));
+        }
+
+        int chunkCount(long encryptedLength) {
+            long body = encryptedLength - HEADER_BYTES;
+            return (int) ((body + chunkSize + TAG_BYTES - 1) / (chunkSize + TAG_BYTES));
+        }
+
+        long plainLength(long encryptedLength) {
+            return encryptedLength - HEADER_BYTES - (long) chunkCount(encryptedLength) * TAG_BYTES;
+        }
+    }
+}
+
+public class ChunkCipherDemo {
+    public static void main(String[] args) throws IOException {
+        SecretKey key = ChunkCipher.newKey();
+        byte[] bytes = new byte[64 * 1024 * 1024];
+        Random random = new Random(3);
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) ('a' + random.nextInt(8));
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        ChunkCipher oneCore = new ChunkCipher(key, 64 * 1024, single);
+        ChunkCipher allCores = new ChunkCipher(key);
+        for (int round = 0; round < 2; round++) {
+            time("1 worker", oneCore, data);
+            time(BlockWorkers.THREADS + " worker(s)", allCores, data);
+        }
+        single.shutdown();
+
+        ByteBuffer encrypted = allCores.encrypt(data);
+        System.out.println("Round trip equal: " + allCores.decrypt(encrypted).equals(data.duplicate()));
+        ByteBuffer chunk = allCores.decryptChunk(encrypted, 10);
+        ByteBuffer expected = data.duplicate();
+        expected.position(10 * allCores.getChunkSize());
+        expected.limit(expected.position() + chunk.remaining());
+        System.out.println("Chunk 10 decrypted on its own equal: " + chunk.equals(expected));
+
+        encrypted.put(ChunkCipher.HEADER_BYTES + 5, (byte) (encrypted.get(ChunkCipher.HEADER_BYTES + 5) ^ 1));
+        try {
+            allCores.decrypt(encrypted);
+        } catch (IllegalStateException e) {
+            System.out.println("Tampered data rejected: " + e.getMessage());
+        }
+        ByteBuffer truncated = allCores.encrypt(data);
+        truncated.limit(truncated.limit() - allCores.getChunkSize() - ChunkCipher.TAG_BYTES);
+        try {
+            allCores.decrypt(truncated);
+        } catch (IllegalStateException e) {
+            System.out.println("Truncated data rejected: " + e.getMessage());
+        }
+
+        // stacked: compress first, then encrypt the compressed blocks on their way to disk
+        Path file = Files.createTempFile("encrypted", ".dat");
+        DataSource stacked = new CompressionDecorator(new EncryptionDecorator(new FileDataSource(file.toString()), key));
+        long start = System.nanoTime();
+        stacked.writeBuffer(data);
+        long writeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        boolean equal = stacked.readBuffer().equals(data.duplicate());
+        long readNanos = System.nanoTime() - start;
+        System.out.println(String.format("Compression(Encryption(File)): write %.0f MB/s, read %.0f MB/s, %d MB on disk, equal: %s",
+                mbPerSecond(bytes.length, writeNanos), mbPerSecond(bytes.length, readNanos),
+                Files.size(file) >> 20, equal));
+        Files.delete(file);
+    }
+
+    private static void time(String name, ChunkCipher cipher, ByteBuffer data) {
+        long start = System.nanoTime();
+        ByteBuffer encrypted = cipher.encrypt(data);
+        long encryptNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        cipher.decrypt(encrypted);
+        long decryptNanos = System.nanoTime() - start;
+        System.out.println(String.format("%-12s encrypt %6.0f MB/s, decrypt %6.0f MB/s", name,
+                mbPerSecond(data.remaining(), encryptNanos), mbPerSecond(data.remaining(), decryptNanos)));
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes * 1e9 / nanos / (1 << 20);
+    }
+}
@@ -0,0 +1,277 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A refined abstraction in the Bridge: the remote changes, the Device hierarchy does not.
+ *
+ * Every RemoteControl.volumeUp() / channelUp() is a get and a set on the device plus a log line.
+ * When the device is slow (IR, network, ...), a burst of presses means a burst of round trips.
+ *
+ * CoalescingRemoteControl collects the presses of a window and sends them as one adjustVolume /
+ * adjustChannel call:
+ * - the first press of a window reads the current value once
+ * - the following presses only add to the pending delta and return the value the device is
+ *   expected to have
+ * - the window is flushed after maxPresses presses or maxDelayMillis, whichever comes first,
+ *   with one log line per flush instead of one per press
+ * - mute() drops a pending volume change and cancels the scheduled flush
+ *
+ * The flush sends the delta, not an absolute value, so with several remotes on one device every
+ * press still counts (on an atomic device no update is lost); the returned values are then only
+ * what this remote expects.
+ */
+class CoalescingRemoteControl extends RemoteControl implements AutoCloseable {
+    private final int maxPresses;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private boolean volumeOpen;
+    private int volume;
+    private int pendingVolume;
+    private boolean channelOpen;
+    private int channel;
+    private int pendingChannel;
+    private int pendingPresses;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    public CoalescingRemoteControl(Device device, int maxPresses, long maxDelayMillis) {
+        super(device);
+        this.maxPresses = maxPresses;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "remote-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void togglePower() {
+        ensureOpen();
+        flush();
+        super.togglePower();
+    }
+
+    @Override
+    public int volumeUp() {
+        return changeVolume(1);
+    }
+
+    @Override
+    public int volumeDown() {
+        return changeVolume(-1);
+    }
+
+    @Override
+    public int channelUp() {
+        return changeChannel(1);
+    }
+
+    @Override
+    public int channelDown() {
+        return changeChannel(-1);
+    }
+
+    // muting makes any pending volume change irrelevant; a pending channel change is sent right
+    // away, which also closes the window and cancels the scheduled flush
+    @Override
+    public synchronized void mute() {
+        ensureOpen();
+        volumeOpen = false;
+        pendingVolume = 0;
+        flush();
+        super.mute();
+    }
+
+    public synchronized void flush() {
+        if (volumeOpen && pendingVolume != 0) {
+            System.out.println("Volume " + signed(pendingVolume) + " for device: " + device.getDeviceType());
+            device.adjustVolume(pendingVolume);
+        }
+        if (channelOpen && pendingChannel != 0) {
+            System.out.println("Channel " + signed(pendingChannel) + " for device: " + device.getDeviceType());
+            device.adjustChannel(pendingChannel);
+        }
+        volumeOpen = false;
+        pendingVolume = 0;
+        channelOpen = false;
+        pendingChannel = 0;
+        pendingPresses = 0;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        flush();
+        closed = true;
+        scheduler.shutdown();
+    }
+
+    private synchronized int changeVolume(int delta) {
+        ensureOpen();
+        if (!volumeOpen) {
+            volume = device.getVolume();
+            volumeOpen = true;
+        }
+        pendingVolume += delta;
+        int value = volume + pendingVolume;
+        pressed();
+        return value;
+    }
+
+    private synchronized int changeChannel(int delta) {
+        ensureOpen();
+        if (!channelOpen) {
+            channel = device.getChannel();
+            channelOpen = true;
+        }
+        pendingChannel += delta;
+        int value = channel + pendingChannel;
+        pressed();
+        return value;
+    }
+
+    // the scheduler is shut down on close, so a later press could not schedule its flush
+    private synchronized void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("CoalescingRemoteControl is closed");
+    }
+
+    private void pressed() {
+        if (++pendingPresses >= maxPresses)
+            flush();
+        else if (scheduledFlush == null)
+            scheduledFlush = scheduler.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static String signed(int delta) {
+        return delta > 0 ? "+" + delta : String.valueOf(delta);
+    }
+}
+
+// a device on the far end of a slow link; every call is one round trip
+class SlowDevice implements Device {
+    private final Device device;
+    final AtomicLong roundTrips = new AtomicLong();
+
+    SlowDevice(Device device) {
+        this.device = device;
+    }
+
+    private void roundTrip() {
+        roundTrips.incrementAndGet();
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public DeviceEnumType getDeviceType() {
+        return device.getDeviceType();
+    }
+
+    @Override
+    public boolean isSwitchedOn() {
+        roundTrip();
+        return device.isSwitchedOn();
+    }
+
+    @Override
+    public boolean switchOn() {
+        roundTrip();
+        return device.switchOn();
+    }
+
+    @Override
+    public boolean switchOff() {
+        roundTrip();
+        return device.switchOff();
+    }
+
+    @Override
+    public int getVolume() {
+        roundTrip();
+        return device.getVolume();
+    }
+
+    @Override
+    public void setVolume(int volume) {
+        roundTrip();
+        device.setVolume(volume);
+    }
+
+    @Override
+    public int adjustVolume(int delta) {
+        roundTrip();
+        return device.adjustVolume(delta);
+    }
+
+    @Override
+    public int getChannel() {
+        roundTrip();
+        return device.getChannel();
+    }
+
+    @Override
+    public void setChannel(int channel) {
+        roundTrip();
+        device.setChannel(channel);
+    }
+
+    @Override
+    public int adjustChannel(int delta) {
+        roundTrip();
+        return device.adjustChannel(delta);
+    }
+}
+
+public class CoalescingRemoteControlDemo {
+    public static void main(String[] args) throws InterruptedException {
+        SlowDevice slowTv = new SlowDevice(new Tv());
+        RemoteControl remote = new RemoteControl(slowTv);
+        long start = System.nanoTime();
+        int volume = 0;
+        for (int i = 0; i < 50; i++)
+            volume = remote.volumeUp();
+        System.out.println(String.format("RemoteControl: volume %d after %d round trips in %d ms",
+                volume, slowTv.roundTrips.get(), (System.nanoTime() - start) / 1_000_000));
+
+        SlowDevice slowRadio = new SlowDevice(new Radio());
+        start = System.nanoTime();
+        try (CoalescingRemoteControl coalescing = new CoalescingRemoteControl(slowRadio, 20, 50)) {
+            for (int i = 0; i < 50; i++)
+                volume = coalescing.volumeUp();
+        }
+        System.out.println(String.format("CoalescingRemoteControl: volume %d after %d round trips in %d ms",
+                volume, slowRadio.roundTrips.get(), (System.nanoTime() - start) / 1_000_000));
+
+        // four remotes on one device: the flushes add their deltas, so no press is lost
+        SlowDevice sharedTv = new SlowDevice(new AtomicTv());
+        Thread[] remotes = new Thread[4];
+        for (int r = 0; r < remotes.length; r++) {
+            remotes[r] = new Thread(() -> {
+                try (CoalescingRemoteControl coalescing = new CoalescingRemoteControl(sharedTv, 25, 50)) {
+                    for (int i = 0; i < 50; i++)
+                        coalescing.volumeUp();
+                }
+            });
+            remotes[r].start();
+        }
+        for (Thread thread : remotes)
+            thread.join();
+        System.out.println(String.format("4 remotes x 50 presses: volume %d", sharedTv.getVolume()));
+    }
+}
@@ -1,5 +1,18 @@
 package edu.javacodestream.designpattern.structural;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import javax.crypto.SecretKey;
+
 /**
  * Decorator is a structural design pattern that lets you attach new behaviors to objects
  * by placing these objects inside special wrapper objects that contain the behaviors.
@@ -19,28 +32,209 @@ package edu.javacodestream.designpattern.structural;
 
 // The component interface defines operations that can be
 // altered by decorators.
+// Data travels as ByteBuffers, so a decorator chain never has to
+// convert to a String; the String methods are just conveniences.
 interface DataSource {
-    void writeData(String data);
-    void readData();
+    void writeBuffer(ByteBuffer data);
+    ByteBuffer readBuffer();
+
+    default void writeData(String data) {
+        writeBuffer(StandardCharsets.UTF_8.encode(data));
+    }
+
+    default String readData() {
+        return StandardCharsets.UTF_8.decode(readBuffer()).toString();
+    }
+
+    // the length of readBuffer()
+    default long size() {
+        return readBuffer().remaining();
+    }
+
+    // length bytes of readBuffer() from position, fewer at the end; sources that can
+    // read a range without reading everything override it
+    default ByteBuffer readBuffer(long position, int length) {
+        ByteBuffer all = readBuffer();
+        ByteBuffer range = all.duplicate();
+        range.position((int) Math.min(all.limit(), all.position() + position));
+        range.limit((int) Math.min(all.limit(), range.position() + (long) length));
+        return range.slice();
+    }
+
+    // adds data after the current content and returns the position it was written at;
+    // sources that transform the whole content (compression, encryption) cannot append
+    default long append(ByteBuffer data) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support append");
+    }
+
+    // makes appended data durable
+    default void force() {
+    }
 }
 
 // Concrete components provide default implementations for the read/write operations.
+// Writes go through a FileChannel into a temporary file that atomically replaces the target,
+// so buffers mapped by earlier reads keep seeing the old, complete content.
+// Reads map the file read-only instead of copying it onto the heap.
+// Appends go through one FileChannel that is kept open until writeBuffer replaces the file.
 class FileDataSource implements DataSource {
 
-    private String fileName;
+    private final Path file;
+    private FileChannel appendChannel;
 
     public FileDataSource(String fileName) {
-        this.fileName = fileName;
+        this.file = Paths.get(fileName);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer data) {
+        try {
+            Writer writer = openWriter();
+            try {
+                ByteBuffer src = data.duplicate();
+                while (src.hasRemaining())
+                    writer.write(src);
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // a streaming writeBuffer: the new content replaces the file when the writer is closed.
+    // Every writer has its own temporary file, so concurrent writers do not mix their bytes;
+    // the last one to close wins.
+    public Writer openWriter() throws IOException {
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            return new Writer(tmp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    final class Writer implements WritableByteChannel {
+        private final Path tmp;
+        private final FileChannel channel;
+
+        private Writer(Path tmp) throws IOException {
+            this.tmp = tmp;
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen())
+                return;
+            try {
+                try {
+                    channel.force(false);
+                } finally {
+                    channel.close();
+                }
+                synchronized (FileDataSource.this) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    closeAppendChannel();
+                }
+            } finally {
+                Files.deleteIfExists(tmp); // only still there if the move failed
+            }
+        }
+
+        // drops what was written; the file keeps its previous content
+        public void abort() throws IOException {
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public synchronized long append(ByteBuffer data) {
+        try {
+            if (appendChannel == null)
+                appendChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long offset = appendChannel.size();
+            ByteBuffer src = data.duplicate();
+            for (long at = offset; src.hasRemaining(); )
+                at += appendChannel.write(src, at);
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
-    public void writeData(String data) {
-        System.out.println("Write data to file: " + this.fileName);
+    public synchronized void force() {
+        try {
+            if (appendChannel != null)
+                appendChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the old channel would keep appending to the replaced file
+    private void closeAppendChannel() throws IOException {
+        if (appendChannel != null) {
+            appendChannel.close();
+            appendChannel = null;
+        }
+    }
+
+    // a read-only mapping of the whole file; empty if the file does not exist yet
+    @Override
+    public ByteBuffer readBuffer() {
+        if (!Files.exists(file))
+            return ByteBuffer.allocate(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
-    public void readData() {
-        System.out.println("Read data from file: " + this.fileName);
+    public long size() {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // a positional read of just the range, no mapping
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        if (!Files.exists(file))
+            return ByteBuffer.allocate(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = Math.min(channel.size(), position + length);
+            ByteBuffer range = ByteBuffer.allocate((int) Math.max(0, end - position));
+            while (range.hasRemaining() && channel.read(range, position + range.position()) >= 0) {
+            }
+            range.flip();
+            return range;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
 
@@ -59,73 +253,156 @@ class DataSourceDecorator implements DataSource {
     }
 
     @Override
-    public void writeData(String data) {
-        wrappedDS.writeData(data);
+    public void writeBuffer(ByteBuffer data) {
+        wrappedDS.writeBuffer(data);
+    }
+
+    @Override
+    public ByteBuffer readBuffer() {
+        return wrappedDS.readBuffer();
     }
 
+    // append, size and ranged reads are not forwarded: positions in the wrapped source only
+    // mean the same thing when the decorator does not transform the data, so decorators opt in
     @Override
-    public void readData() {
-        wrappedDS.readData();
+    public void force() {
+        wrappedDS.force();
+    }
+
+    DataSource getWrapped() {
+        return wrappedDS;
+    }
+
+    // the streaming form of writeBuffer, used by FusedPipeline: what is written to the returned
+    // channel reaches downstream transformed; closing it finishes the transformation
+    public WritableByteChannel encoder(WritableByteChannel downstream) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be streamed");
     }
 }
 
 // Concrete decorators must call methods on the wrapped object,
 // but may also add something of their own to the result.
+// Encrypts with AES-GCM chunk by chunk, in parallel (see ChunkCipher for the layout).
 class EncryptionDecorator extends DataSourceDecorator {
 
-    public EncryptionDecorator(DataSource wrappedDS) {
+    private final ChunkCipher cipher;
+
+    public EncryptionDecorator(DataSource wrappedDS, SecretKey key) {
+        this(wrappedDS, new ChunkCipher(key));
+    }
+
+    public EncryptionDecorator(DataSource wrappedDS, ChunkCipher cipher) {
         super(wrappedDS);
+        this.cipher = cipher;
     }
 
     // Encrypt the data before write is done by the decorator
-    public void writeData(String data) {
-        System.out.println("EncryptionDecorator: Encrypt data before write");
-        wrappedDS.writeData(data);
+    public void writeBuffer(ByteBuffer data) {
+        wrappedDS.writeBuffer(cipher.encrypt(data));
     }
 
     // De-Encrypt the data after read is done by the decorator
-    public void readData() {
-        wrappedDS.readData();
-        System.out.println("EncryptionDecorator: Decrypt data after read");
+    public ByteBuffer readBuffer() {
+        return cipher.decrypt(wrappedDS.readBuffer());
+    }
+
+    @Override
+    public long size() {
+        return cipher.plainLength(wrappedDS.size(), wrappedDS::readBuffer);
+    }
+
+    // decrypts only the chunks the range falls in
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        return cipher.read(wrappedDS.size(), wrappedDS::readBuffer, position, length);
+    }
+
+    public int chunkCount() {
+        return cipher.chunkCount(wrappedDS.readBuffer());
+    }
+
+    public ByteBuffer readChunk(int chunk) {
+        return cipher.decryptChunk(wrappedDS.readBuffer(), chunk);
+    }
+
+    @Override
+    public WritableByteChannel encoder(WritableByteChannel downstream) throws IOException {
+        return cipher.encoder(downstream);
     }
 }
 
+// Compresses independent fixed-size blocks in parallel (see BlockCompressor for the layout),
+// so a single block can also be read back without inflating the rest.
 class CompressionDecorator extends DataSourceDecorator {
 
+    private final BlockCompressor compressor;
+
     public CompressionDecorator(DataSource wrappedDS) {
+        this(wrappedDS, new BlockCompressor());
+    }
+
+    public CompressionDecorator(DataSource wrappedDS, BlockCompressor compressor) {
         super(wrappedDS);
+        this.compressor = compressor;
+    }
+
+    public void writeBuffer(ByteBuffer data) {
+        wrappedDS.writeBuffer(compressor.compress(data));
+    }
+
+    public ByteBuffer readBuffer() {
+        return compressor.decompress(wrappedDS.readBuffer());
+    }
+
+    // reads the length from the footer
+    @Override
+    public long size() {
+        return BlockCompressor.Index.read(wrappedDS.size(), wrappedDS::readBuffer).rawLength;
+    }
+
+    // inflates only the blocks the range falls in
+    @Override
+    public ByteBuffer readBuffer(long position, int length) {
+        return compressor.read(wrappedDS.size(), wrappedDS::readBuffer, position, length);
+    }
+
+    public int blockCount() {
+        return BlockCompressor.Index.of(wrappedDS.readBuffer()).blockCount();
     }
 
-    public void writeData(String data) {
-        System.out.println("CompressionDecorator: Compress data before write");
-        wrappedDS.writeData(data);
+    public ByteBuffer readBlock(int block) {
+        return compressor.readBlock(wrappedDS.readBuffer(), block);
     }
 
-    public void readData() {
-        wrappedDS.readData();
-        System.out.println("CompressionDecorator: De-Compression data after read");
+    @Override
+    public WritableByteChannel encoder(WritableByteChannel downstream) {
+        return compressor.encoder(downstream);
     }
 }
 
 public class DecoratorDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("somefile", ".dat");
+
         // The target file has been written with plain data.
         System.out.println("Using the Basic FileDataSource");
-        DataSource basicDS = new FileDataSource("somefile.dat");
+        DataSource basicDS = new FileDataSource(file.toString());
         basicDS.writeData("test data");
-        basicDS.readData();
+        System.out.println("Read: " + basicDS.readData());
 
         System.out.println("========================================");
         System.out.println("Using the Basic EncryptionDecorator");
-        DataSource encryptionDecoratorDS = new EncryptionDecorator(basicDS);
+        DataSource encryptionDecoratorDS = new EncryptionDecorator(basicDS, ChunkCipher.newKey());
         encryptionDecoratorDS.writeData("test data");
-        encryptionDecoratorDS.readData();
+        System.out.println("Read: " + encryptionDecoratorDS.readData());
 
         System.out.println("========================================");
-        System.out.println("Using the Basic EncryptionDecorator");
+        System.out.println("Using the Basic CompressionDecorator");
         DataSource compressionDecoratorDS = new CompressionDecorator(basicDS);
         compressionDecoratorDS.writeData("test data");
-        compressionDecoratorDS.readData();
+        System.out.println("Read: " + compressionDecoratorDS.readData());
+
+        Files.deleteIfExists(file);
     }
 
 }
@@ -0,0 +1,196 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.util.Arrays;
+
+/**
+ * For hundreds of thousands of devices, one Tv / Radio object plus one RemoteControl per device is
+ * mostly object headers and pointers. DeviceFleet keeps the same state column by column:
+ *
+ *   types[i] (DeviceEnumType ordinal) | switchedOn[i] | volumes[i] | channels[i]
+ *
+ * Bulk operations (mute every RADIO, shift the channel of a range of devices, ...) are simple loops
+ * over primitive arrays. For single-device use, device(i) hands out a small Device view over
+ * row i, so the existing RemoteControl still works through the Bridge.
+ *
+ * The fleet is not thread-safe; use one fleet per thread or guard it externally.
+ */
+class DeviceFleet {
+    private static final DeviceEnumType[] TYPES = DeviceEnumType.values();
+
+    private byte[] types;
+    private boolean[] switchedOn;
+    private int[] volumes;
+    private int[] channels;
+    private int size;
+
+    public DeviceFleet(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        types = new byte[capacity];
+        switchedOn = new boolean[capacity];
+        volumes = new int[capacity];
+        channels = new int[capacity];
+    }
+
+    // returns the index of the new device
+    public int add(DeviceEnumType type) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            switchedOn = Arrays.copyOf(switchedOn, capacity);
+            volumes = Arrays.copyOf(volumes, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Device device(int index) {
+        checkIndex(index);
+        return new FleetDevice(index);
+    }
+
+    public void switchOnAll(DeviceEnumType type) {
+        setPower(type, true);
+    }
+
+    public void switchOffAll(DeviceEnumType type) {
+        setPower(type, false);
+    }
+
+    public void muteAll(DeviceEnumType type) {
+        byte t = (byte) type.ordinal();
+        for (int i = 0; i < size; i++)
+            if (types[i] == t)
+                volumes[i] = 0;
+    }
+
+    // devices [from, to)
+    public void setVolume(int from, int to, int volume) {
+        checkRange(from, to);
+        Arrays.fill(volumes, from, to, volume);
+    }
+
+    // devices [from, to)
+    public void shiftChannel(int from, int to, int delta) {
+        checkRange(from, to);
+        for (int i = from; i < to; i++)
+            channels[i] += delta;
+    }
+
+    public int countSwitchedOn(DeviceEnumType type) {
+        byte t = (byte) type.ordinal();
+        int count = 0;
+        for (int i = 0; i < size; i++)
+            if (types[i] == t && switchedOn[i])
+                count++;
+        return count;
+    }
+
+    private void setPower(DeviceEnumType type, boolean on) {
+        byte t = (byte) type.ordinal();
+        for (int i = 0; i < size; i++)
+            if (types[i] == t)
+                switchedOn[i] = on;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Device " + index + " of " + size);
+    }
+
+    private void checkRange(int from, int to) {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("Devices [" + from + ", " + to + ") of " + size);
+    }
+
+    // Device view over one row of the fleet
+    private final class FleetDevice implements Device {
+        private final int index;
+
+        FleetDevice(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public DeviceEnumType getDeviceType() {
+            return TYPES[types[index]];
+        }
+
+        @Override
+        public boolean isSwitchedOn() {
+            return switchedOn[index];
+        }
+
+        @Override
+        public boolean switchOn() {
+            switchedOn[index] = true;
+            return true;
+        }
+
+        @Override
+        public boolean switchOff() {
+            switchedOn[index] = false;
+            return false;
+        }
+
+        @Override
+        public int getVolume() {
+            return volumes[index];
+        }
+
+        @Override
+        public void setVolume(int volume) {
+            volumes[index] = volume;
+        }
+
+        @Override
+        public int adjustVolume(int delta) {
+            return volumes[index] += delta;
+        }
+
+        @Override
+        public int getChannel() {
+            return channels[index];
+        }
+
+        @Override
+        public void setChannel(int channel) {
+            channels[index] = channel;
+        }
+
+        @Override
+        public int adjustChannel(int delta) {
+            return channels[index] += delta;
+        }
+    }
+}
+
+public class DeviceFleetDemo {
+    public static void main(String[] args) {
+        int devices = 500_000;
+        DeviceFleet fleet = new DeviceFleet(devices);
+        for (int i = 0; i < devices; i++)
+            fleet.add(i % 3 == 0 ? DeviceEnumType.RADIO : DeviceEnumType.TV);
+
+        long start = System.nanoTime();
+        fleet.switchOnAll(DeviceEnumType.RADIO);
+        fleet.setVolume(0, fleet.size(), 10);
+        fleet.muteAll(DeviceEnumType.RADIO);
+        fleet.shiftChannel(1000, 200_000, 5);
+        System.out.println(String.format("Bulk operations over %d devices took %d ms, %d radios switched on",
+                fleet.size(), (System.nanoTime() - start) / 1_000_000, fleet.countSwitchedOn(DeviceEnumType.RADIO)));
+
+        // single-device use through the Bridge, as before
+        RemoteControl remote = new RemoteControl(fleet.device(1));
+        remote.togglePower();
+        remote.volumeUp();
+        remote.channelUp();
+        Device tv = fleet.device(1);
+        System.out.println(String.format("Device 1 (%s): on=%s, volume=%d, channel=%d",
+                tv.getDeviceType(), tv.isSwitchedOn(), tv.getVolume(), tv.getChannel()));
+    }
+}
@@ -1,5 +1,25 @@
 package edu.javacodestream.designpattern.structural;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Facade is a structural design pattern that provides a simplified interface to a
  * library, a framework, or any other complex set of classes.
@@ -27,53 +47,372 @@ package edu.javacodestream.designpattern.structural;
 // These are some of the classes of a complex 3rd-party video
 // conversion framework. We don't control that code, therefore
 // can't simplify it.
+// (Stand-ins: the codecs are CPU-heavy but size-preserving byte transforms,
+// so every chunk of the input maps to the chunk at the same position of the output.)
+
+class VideoFile {
+    private final Path path;
+
+    public VideoFile(String filename) {
+        this.path = Paths.get(filename);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // the codec type is the file extension
+    public String getCodecType() {
+        String name = path.getFileName().toString();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+}
+
+interface Codec {
+    String getType();
+
+    // transform length bytes in place; position is where data[0] sits in the stream
+    void decode(byte[] data, int length, long position);
+
+    void encode(byte[] data, int length, long position);
+
+    // decode source (position to limit) into target, e.g. straight out of a mapped file
+    default void decode(ByteBuffer source, byte[] target, long position) {
+        int length = source.remaining();
+        source.duplicate().get(target, 0, length);
+        decode(target, length, position);
+    }
+}
+
+// a few rounds of an invertible, position-dependent byte mix
+abstract class MixingCodec implements Codec {
+    private static final int ROUNDS = 8;
 
-/*class VideoFile
-// ...
+    private final int multiplier;
+    private final int inverse; // multiplier * inverse == 1 (mod 256)
+    private final long seed;
 
-class OggCompressionCodec
-// ...
+    protected MixingCodec(int multiplier, int inverse, long seed) {
+        this.multiplier = multiplier;
+        this.inverse = inverse;
+        this.seed = seed;
+    }
 
-class MPEG4CompressionCodec
-// ...
+    @Override
+    public void encode(byte[] data, int length, long position) {
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xFF;
+            long key = (position + i) * seed;
+            for (int round = 0; round < ROUNDS; round++)
+                b = ((b ^ (int) (key >>> (round * 8))) * multiplier + round) & 0xFF;
+            data[i] = (byte) b;
+        }
+    }
 
-class CodecFactory
-// ...
+    @Override
+    public void decode(byte[] data, int length, long position) {
+        for (int i = 0; i < length; i++)
+            data[i] = decode(data[i], position + i);
+    }
 
-class BitrateReader
-// ...
+    // reads every byte from source once, no copy in between
+    @Override
+    public void decode(ByteBuffer source, byte[] target, long position) {
+        int from = source.position();
+        int length = source.remaining();
+        for (int i = 0; i < length; i++)
+            target[i] = decode(source.get(from + i), position + i);
+    }
 
-class AudioMixer
-// ...
+    private byte decode(byte value, long position) {
+        int b = value & 0xFF;
+        long key = position * seed;
+        for (int round = ROUNDS - 1; round >= 0; round--)
+            b = (((b - round) * inverse) & 0xFF) ^ ((int) (key >>> (round * 8)) & 0xFF);
+        return (byte) b;
+    }
+}
+
+class OggCompressionCodec extends MixingCodec {
+    public OggCompressionCodec() {
+        super(167, 23, 0x9E3779B97F4A7C15L);
+    }
+
+    @Override
+    public String getType() {
+        return "ogg";
+    }
+}
+
+class MPEG4CompressionCodec extends MixingCodec {
+    public MPEG4CompressionCodec() {
+        super(91, 211, 0xC2B2AE3D27D4EB4FL);
+    }
+
+    @Override
+    public String getType() {
+        return "mp4";
+    }
+}
+
+class CodecFactory {
+    public static Codec extract(VideoFile file) {
+        return forFormat(file.getCodecType());
+    }
+
+    public static Codec forFormat(String format) {
+        switch (format) {
+            case "ogg":
+                return new OggCompressionCodec();
+            case "mp4":
+                return new MPEG4CompressionCodec();
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+}
+
+class BitrateReader {
+    // the whole file in one buffer; fine for small files only
+    public static byte[] read(String filename, Codec sourceCodec) throws IOException {
+        byte[] data = Files.readAllBytes(Paths.get(filename));
+        sourceCodec.decode(data, data.length, 0);
+        return data;
+    }
+
+    public static byte[] convert(byte[] buffer, Codec destinationCodec) {
+        destinationCodec.encode(buffer, buffer.length, 0);
+        return buffer;
+    }
+}
+
+// treats the bytes as 8-bit samples and evens out the loudest ones
+class AudioMixer {
+    public byte[] fix(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            int sample = data[i];
+            if (sample > 100 || sample < -100)
+                data[i] = (byte) (sample - (sample >> 2));
+        }
+        return data;
+    }
+}
 
 
 // We create a facade class to hide the framework's complexity
 // behind a simple interface. It's a trade-off between
 // functionality and simplicity.
-class VideoConverter is
-        method convert(filename, format):File is
-        file = new VideoFile(filename)
-        sourceCodec = new CodecFactory.extract(file)
-        if (format == "mp4")
-        destinationCodec = new MPEG4CompressionCodec()
-        else
-        destinationCodec = new OggCompressionCodec()
-        buffer = BitrateReader.read(filename, sourceCodec)
-        result = BitrateReader.convert(buffer, destinationCodec)
-        result = (new AudioMixer()).fix(result)
-        return new File(result)
+//
+// convert() runs as a staged pipeline over fixed-size chunks:
+//
+//   read -> decode -> transcode -> mix -> write
+//
+// The read stage only hands out read-only views of the memory-mapped input (MappedBitrateReader),
+// and decode reads straight from them into a pooled chunk buffer, so the input is never copied
+// and memory use does not grow with the size of the file.
+// Stages are connected by bounded queues, so a fast stage can only run a few chunks ahead,
+// and each CPU stage has its own workers, so chunks are processed in parallel.
+// The codecs preserve the size, so the writer puts every chunk at its own offset with a
+// positional write, in whatever order the chunks arrive. Chunk buffers come from a BufferPool
+// and are transformed in place.
+// The result is written to a temporary file next to the target and only moved over it once
+// every chunk is written, so a failed conversion leaves no partial file behind.
+class VideoConverter {
+
+    private static final Chunk END = new Chunk(-1, null, null);
+
+    static final class Chunk {
+        final long position;
+        final ByteBuffer source;
+        final byte[] data;
+        final int length;
+
+        Chunk(long position, ByteBuffer source, byte[] data) {
+            this.position = position;
+            this.source = source;
+            this.data = data;
+            this.length = source == null ? 0 : source.remaining();
+        }
+    }
+
+    private final int chunkSize;
+    private final int workersPerStage;
+    private final int queueCapacity;
+
+    public VideoConverter() {
+        this(1024 * 1024, Runtime.getRuntime().availableProcessors(), 8);
+    }
+
+    public VideoConverter(int chunkSize, int workersPerStage, int queueCapacity) {
+        this.chunkSize = chunkSize;
+        this.workersPerStage = workersPerStage;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public File convert(String filename, String format) throws IOException {
+        VideoFile file = new VideoFile(filename);
+        Codec sourceCodec = CodecFactory.extract(file);
+        Codec destinationCodec = CodecFactory.forFormat(format);
+        AudioMixer mixer = new AudioMixer();
+        Path target = targetFor(file, format);
+
+        BufferPool buffers = new BufferPool(chunkSize, 4 * queueCapacity + 4 * workersPerStage);
+        BlockingQueue<Chunk> read = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Chunk> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Chunk> transcoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Chunk> mixed = new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService threads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "video-converter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path temporary = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (MappedBitrateReader in = new MappedBitrateReader(file.getPath(), chunkSize);
+                 FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                CompletionService<Void> tasks = new ExecutorCompletionService<>(threads);
+                tasks.submit(() -> {
+                    readChunks(in, buffers, read);
+                    return null;
+                });
+                int count = 1;
+                count += stage(tasks, read, decoded, c -> sourceCodec.decode(c.source, c.data, c.position));
+                count += stage(tasks, decoded, transcoded, c -> destinationCodec.encode(c.data, c.length, c.position));
+                count += stage(tasks, transcoded, mixed, c -> mixer.fix(c.data, c.length));
+                count += stage(tasks, mixed, null, c -> {
+                    write(out, c);
+                    buffers.release(c.data);
+                });
+                await(tasks, count, threads);
+                out.force(false);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            threads.shutdownNow();
+            Files.deleteIfExists(temporary);
+        }
+        return target.toFile();
+    }
+
+    // the converted file: the input with the extension of the format, never the input itself
+    static Path targetFor(VideoFile file, String format) {
+        String name = file.getPath().getFileName().toString();
+        Path target = file.getPath().resolveSibling(name.substring(0, name.lastIndexOf('.') + 1) + format);
+        if (target.equals(file.getPath()))
+            throw new IllegalArgumentException(file.getPath() + " is already in the " + format + " format");
+        return target;
+    }
+
+    private void readChunks(MappedBitrateReader in, BufferPool buffers, BlockingQueue<Chunk> out) throws InterruptedException {
+        try {
+            while (in.hasNext()) {
+                long position = in.nextPosition();
+                out.put(new Chunk(position, in.next(), buffers.acquire()));
+            }
+        } finally {
+            end(out);
+        }
+    }
+
+    interface ChunkWork {
+        void apply(Chunk chunk) throws IOException;
+    }
+
+    // workersPerStage workers taking chunks from in, transforming them and passing them to out;
+    // the last worker to stop, on the end marker or on a failure, passes one on for every worker
+    // of the next stage, so the stages after a failed one still end
+    private int stage(CompletionService<Void> tasks, BlockingQueue<Chunk> in, BlockingQueue<Chunk> out, ChunkWork work) {
+        AtomicInteger running = new AtomicInteger(workersPerStage);
+        for (int w = 0; w < workersPerStage; w++) {
+            tasks.submit(() -> {
+                try {
+                    for (Chunk chunk = in.take(); chunk != END; chunk = in.take()) {
+                        work.apply(chunk);
+                        if (out != null)
+                            out.put(chunk);
+                    }
+                } finally {
+                    if (running.decrementAndGet() == 0 && out != null)
+                        end(out);
+                }
+                return null;
+            });
+        }
+        return workersPerStage;
+    }
+
+    // passes an end marker on for every worker of the next stage; gives up when interrupted,
+    // which only happens when the whole conversion is being cancelled
+    private void end(BlockingQueue<Chunk> out) {
+        try {
+            for (int i = 0; i < workersPerStage; i++)
+                out.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(FileChannel out, Chunk chunk) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+        while (source.hasRemaining())
+            out.write(source, chunk.position + source.position());
+    }
+
+    // waits for the tasks in the order they finish; the first failure interrupts all the others,
+    // so none of them is left blocked on a queue
+    private static void await(CompletionService<Void> tasks, int count, ExecutorService threads) throws IOException {
+        try {
+            for (int i = 0; i < count; i++)
+                tasks.take().get();
+        } catch (InterruptedException e) {
+            threads.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            threads.shutdownNow();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
 
 // Application classes don't depend on a billion classes
 // provided by the complex framework. Also, if you decide to
 // switch frameworks, you only need to rewrite the facade class.
-class Application is
-        method main() is
-        convertor = new VideoConverter()
-        mp4 = convertor.convert("funny-cats-video.ogg", "mp4")
-        mp4.save()
+public class FacadeDemo {
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("videos");
+        Path video = directory.resolve("funny-cats-video.ogg");
+        byte[] content = new byte[64 * 1024 * 1024];
+        new Random(2).nextBytes(content);
+        Files.write(video, content);
 
-*/
+        VideoConverter convertor = new VideoConverter();
+        File mp4 = convertor.convert(video.toString(), "mp4");
+        System.out.println("Converted to " + mp4.getName() + ", " + (mp4.length() >> 20) + " MB");
 
+        // the same pipeline with one worker per stage vs. one per core
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers : new int[]{1, cores}) {
+            long start = System.nanoTime();
+            File result = new VideoConverter(1024 * 1024, workers, 8).convert(video.toString(), "mp4");
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format("%2d worker(s) per stage: %.0f MB/s, same output: %s", workers,
+                    content.length * 1e9 / nanos / (1 << 20), Arrays.equals(Files.readAllBytes(result.toPath()), Files.readAllBytes(mp4.toPath()))));
+        }
 
-public class FacadeDemo {
+        // the whole-file path of the framework gives the same result
+        byte[] expected = new AudioMixer().fix(
+                BitrateReader.convert(BitrateReader.read(video.toString(), new OggCompressionCodec()), new MPEG4CompressionCodec()),
+                content.length);
+        System.out.println("Matches the whole-file conversion: " + Arrays.equals(expected, Files.readAllBytes(mp4.toPath())));
+
+        Files.delete(mp4.toPath());
+        Files.delete(video);
+        Files.delete(directory);
+    }
 }
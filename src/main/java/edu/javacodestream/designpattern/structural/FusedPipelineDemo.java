@@ -0,0 +1,128 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.crypto.SecretKey;
+
+/**
+ * Writing through nested decorators, e.g. Compression(Encryption(File)), makes one full pass
+ * per layer: CompressionDecorator builds the whole compressed buffer, EncryptionDecorator builds
+ * the whole encrypted copy of it, and only then FileDataSource writes it.
+ *
+ * FusedPipeline writes through the same chain in one streaming pass. Every decorator supplies
+ * its encoder(downstream), and the encoders are stacked on a FileDataSource.Writer:
+ * - compression fills pooled block buffers and deflates them on the workers, at most a few
+ *   blocks ahead of the writer
+ * - encryption encrypts one chunk at a time from a reused buffer into another reused buffer
+ * - the file gets each encrypted chunk as soon as it is ready
+ *
+ * Memory stays at a few blocks, whatever the size of the input. The file content has the same
+ * layout as a nested writeBuffer (only the random stream id of the encryption differs), so it is
+ * read back through the decorators as usual. If anything fails, the file keeps its old content.
+ */
+class FusedPipeline {
+
+    private static final int COPY_BUFFER_BYTES = 256 * 1024;
+
+    private final DataSource chain;
+    private final FileDataSource sink;
+
+    public FusedPipeline(DataSource chain) {
+        this.chain = chain;
+        DataSource innermost = chain;
+        while (innermost instanceof DataSourceDecorator)
+            innermost = ((DataSourceDecorator) innermost).getWrapped();
+        if (!(innermost instanceof FileDataSource))
+            throw new IllegalArgumentException("The chain must end in a FileDataSource, not " + innermost.getClass().getSimpleName());
+        this.sink = (FileDataSource) innermost;
+    }
+
+    // same effect as chain.writeBuffer(data)
+    public long write(ByteBuffer data) {
+        try {
+            return write(new BufferChannel(data.duplicate()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // returns the number of bytes read from in
+    public long write(ReadableByteChannel in) throws IOException {
+        FileDataSource.Writer writer = sink.openWriter();
+        try {
+            WritableByteChannel top = encoders(chain, writer);
+            long length;
+            if (top instanceof BlockCompressor.Encoder) {
+                length = ((BlockCompressor.Encoder) top).transferFrom(in);
+            } else {
+                length = 0;
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        top.write(buffer);
+                    buffer.clear();
+                    length += n;
+                }
+            }
+            // finishes every stage from the outside in, then commits the file; a stage that
+            // fails to finish leaves the writer open, so it is aborted below
+            top.close();
+            return length;
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    private WritableByteChannel encoders(DataSource dataSource, FileDataSource.Writer writer) throws IOException {
+        if (dataSource == sink)
+            return writer;
+        DataSourceDecorator decorator = (DataSourceDecorator) dataSource;
+        return decorator.encoder(encoders(decorator.getWrapped(), writer));
+    }
+}
+
+public class FusedPipelineDemo {
+    public static void main(String[] args) throws IOException {
+        byte[] bytes = new byte[64 * 1024 * 1024];
+        Random random = new Random(11);
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) ('a' + random.nextInt(4) + (i % 64 == 0 ? 1 : 0));
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+
+        SecretKey key = ChunkCipher.newKey();
+        BlockCompressor compressor = new BlockCompressor(256 * 1024, Deflater.BEST_SPEED,
+                BlockWorkers.shared(), BlockWorkers.THREADS);
+        Path nestedFile = Files.createTempFile("nested", ".dat");
+        Path fusedFile = Files.createTempFile("fused", ".dat");
+        // compress first, then encrypt the compressed blocks
+        DataSource nested = new CompressionDecorator(new EncryptionDecorator(new FileDataSource(nestedFile.toString()), key), compressor);
+        DataSource fusedChain = new CompressionDecorator(new EncryptionDecorator(new FileDataSource(fusedFile.toString()), key), compressor);
+        FusedPipeline fused = new FusedPipeline(fusedChain);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            nested.writeBuffer(data);
+            long nestedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            fused.write(data);
+            long fusedNanos = System.nanoTime() - start;
+            System.out.println(String.format("Nested decorators %5d ms, fused pipeline %5d ms (%d MB in)",
+                    nestedNanos / 1_000_000, fusedNanos / 1_000_000, bytes.length >> 20));
+        }
+
+        System.out.println("Same file size: " + (Files.size(nestedFile) == Files.size(fusedFile)));
+        System.out.println("Fused output reads back through the decorators: " + fusedChain.readBuffer().equals(data.duplicate()));
+
+        Files.delete(nestedFile);
+        Files.delete(fusedFile);
+    }
+}
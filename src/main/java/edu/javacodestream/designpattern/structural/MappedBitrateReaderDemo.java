@@ -0,0 +1,162 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A chunked reader for the video converter.
+ *
+ * BitrateReader.read loads the whole file into one array, so the heap has to hold the complete
+ * video. MappedBitrateReader memory-maps the input instead and hands it out as read-only
+ * fixed-size chunk views of the mapping: nothing is copied, and the bytes are paged in by the
+ * OS when a stage touches them.
+ *
+ * - the file is mapped in windows of a multiple of the chunk size (about 256 MB), since a single
+ *   mapping is limited to 2 GB; a chunk never spans two windows
+ * - a window is only mapped when the first chunk in it is requested, and dropped with its last
+ *   chunk, so the heap use does not depend on the size of the file
+ * - nextPosition() is the offset in the file of the chunk that next() returns
+ *
+ * Views stay readable after close(); the mapping is released when they are garbage collected.
+ */
+class MappedBitrateReader implements Iterator<ByteBuffer>, AutoCloseable {
+
+    private static final long WINDOW_BYTES = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long windowSize;
+    private final long length;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedBitrateReader(Path file, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.chunkSize = chunkSize;
+        this.windowSize = Math.max(1, WINDOW_BYTES / chunkSize) * chunkSize;
+        this.length = channel.size();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long nextPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < length;
+    }
+
+    @Override
+    public ByteBuffer next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        if (window == null || position >= windowStart + window.capacity()) {
+            try {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, length - windowStart));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map " + chunkSize + " byte chunks at " + position, e);
+            }
+        }
+        ByteBuffer chunk = window.duplicate();
+        chunk.position((int) (position - windowStart));
+        chunk.limit((int) Math.min(chunk.position() + (long) chunkSize, window.capacity()));
+        position += chunk.remaining();
+        return chunk.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
+
+public class MappedBitrateReaderDemo {
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("videos");
+        Path video = directory.resolve("long-cats-video.ogg");
+        int megabytes = 256;
+        Random random = new Random(3);
+        byte[] block = new byte[1024 * 1024];
+        try (FileChannel out = FileChannel.open(video, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < megabytes; i++) {
+                random.nextBytes(block);
+                out.write(ByteBuffer.wrap(block));
+            }
+        }
+
+        // chunk views over the mapping: nothing is read into the heap
+        long views = 0;
+        try (MappedBitrateReader reader = new MappedBitrateReader(video, 1024 * 1024)) {
+            while (reader.hasNext())
+                views += reader.next().remaining();
+        }
+        System.out.println(String.format("%d MB as 1 MB chunk views", views >> 20));
+
+        // heap in use while converting, sampled every few ms
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+        long[] peak = {baseline};
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        long start = System.nanoTime();
+        File mp4 = new VideoConverter(1024 * 1024, runtime.availableProcessors(), 4).convert(video.toString(), "mp4");
+        long nanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        System.out.println(String.format("Converted %d MB in %d ms, peak heap growth %d MB",
+                megabytes, nanos / 1_000_000, (peak[0] - baseline) >> 20));
+
+        // spot check some ranges against the framework's byte[] path
+        Codec ogg = new OggCompressionCodec();
+        Codec mp4Codec = new MPEG4CompressionCodec();
+        AudioMixer mixer = new AudioMixer();
+        int mismatches = 0;
+        try (FileChannel in = FileChannel.open(video); FileChannel out = FileChannel.open(mp4.toPath())) {
+            for (int i = 0; i < 16; i++) {
+                long position = random.nextInt((megabytes << 20) - 65536);
+                byte[] expected = new byte[65536];
+                byte[] actual = new byte[65536];
+                in.read(ByteBuffer.wrap(expected), position);
+                out.read(ByteBuffer.wrap(actual), position);
+                ogg.decode(expected, expected.length, position);
+                mp4Codec.encode(expected, expected.length, position);
+                mixer.fix(expected, expected.length);
+                if (!Arrays.equals(expected, actual))
+                    mismatches++;
+            }
+        }
+        System.out.println("Mismatching ranges: " + mismatches);
+
+        Files.delete(mp4.toPath());
+        Files.delete(video);
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,340 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * A DataSource with log semantics, for event data.
+ *
+ * The log is a directory of segment files, each memory-mapped and named after its base offset
+ * (the logical byte position of its first record). A record is
+ *
+ *   magic (int) | payload length (int) | CRC32 of length and payload (int) | payload
+ *
+ * The magic is written last, so anything else (0) marks the unwritten rest of a segment. When a
+ * record does not fit the active segment any more, a new segment is started at the next offset
+ * (roll over).
+ *
+ * - appendRecord(data) returns the offset of the record; read(offset) finds the segment by
+ *   binary search over the base offsets and returns a read-only slice of the mapping, no copy
+ * - read(offset) checks the magic and the CRC at offset, so an offset that is not the start of
+ *   a record, or a record that was only partly written before a crash, is rejected, not misread
+ * - a sparse index keeps the offset of every 16th record, so offsetOf(n), the offset of the
+ *   n-th record, scans at most 15 records
+ * - as a DataSource, the content is the latest record: writeBuffer appends a new record and
+ *   readBuffer, size and ranged reads see only that one. The decorators that go through
+ *   writeBuffer / readBuffer (compression, encryption, checksums, caching) work on top of it,
+ *   each write being one record. DataSource.append is not supported, since a record offset is
+ *   no position in that content, so neither is BufferingDecorator
+ * - appends are serialized; reads take no lock and only see records that are fully written
+ * - opening an existing directory scans the segments to rebuild the index and find the end,
+ *   which is the first record with a bad magic or CRC
+ *
+ * Slices stay valid until close(), which trims the active segment to its used length.
+ */
+class SegmentedLogDataSource implements DataSource, AutoCloseable {
+
+    static final int MAGIC = 0x5345474c; // "SEGL"
+    static final int HEADER_BYTES = 12;
+    private static final int INDEX_INTERVAL = 16;
+
+    private static final class Segment {
+        final long baseOffset;
+        final Path file;
+        final MappedByteBuffer buffer;
+        volatile int end; // bytes used; everything below is fully written
+
+        Segment(long baseOffset, Path file, MappedByteBuffer buffer, int end) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.buffer = buffer;
+            this.end = end;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile Segment[] segments; // sorted by base offset, replaced on roll over
+    private long[] sparseIndex = new long[64];
+    private long recordCount;
+    private volatile long lastOffset = -1;
+    private boolean closed;
+
+    private SegmentedLogDataSource(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public static SegmentedLogDataSource open(Path directory, int segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        SegmentedLogDataSource log = new SegmentedLogDataSource(directory, segmentBytes);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        files.sort(null); // zero-padded base offsets sort like numbers
+
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            boolean active = i == files.size() - 1;
+            Segment segment = log.map(base, file, active ? Math.max(segmentBytes, Files.size(file)) : Files.size(file));
+            segment.end = log.recover(segment);
+            segments.add(segment);
+        }
+        if (segments.isEmpty())
+            segments.add(log.newSegment(0, segmentBytes));
+        log.segments = segments.toArray(new Segment[0]);
+        return log;
+    }
+
+    public synchronized long appendRecord(ByteBuffer data) {
+        if (closed)
+            throw new IllegalStateException("The log is closed");
+        int length = data.remaining();
+        Segment active = active();
+        if (active.buffer.capacity() - active.end < HEADER_BYTES + length)
+            active = roll(active, HEADER_BYTES + length);
+
+        int position = active.end;
+        ByteBuffer target = active.buffer.duplicate();
+        target.position(position + HEADER_BYTES);
+        target.put(data.duplicate());
+        active.buffer.putInt(position + 4, length);
+        active.buffer.putInt(position + 8, checksum(active.buffer, position, length));
+        active.buffer.putInt(position, MAGIC);
+        active.end = position + HEADER_BYTES + length; // publishes the record to readers
+
+        long offset = active.baseOffset + position;
+        indexRecord(offset);
+        lastOffset = offset;
+        return offset;
+    }
+
+    // the payload of the record at offset, as a read-only slice of the segment mapping
+    public ByteBuffer read(long offset) {
+        Segment segment = segmentFor(offset);
+        long relative = offset - segment.baseOffset;
+        int end = segment.end;
+        if (relative + HEADER_BYTES > end || segment.buffer.getInt((int) relative) != MAGIC)
+            throw new IllegalArgumentException("No record at offset " + offset);
+        int position = (int) relative;
+        int length = segment.buffer.getInt(position + 4);
+        if (length < 0 || length > end - position - HEADER_BYTES
+                || segment.buffer.getInt(position + 8) != checksum(segment.buffer, position, length))
+            throw new IllegalArgumentException("No record at offset " + offset);
+        ByteBuffer payload = segment.buffer.duplicate();
+        payload.position(position + HEADER_BYTES);
+        payload.limit(position + HEADER_BYTES + length);
+        return payload.slice().asReadOnlyBuffer();
+    }
+
+    // the offset of the n-th record (counting from 0)
+    public synchronized long offsetOf(long record) {
+        if (record < 0 || record >= recordCount)
+            throw new IndexOutOfBoundsException("Record " + record + " of " + recordCount);
+        long offset = sparseIndex[(int) (record / INDEX_INTERVAL)];
+        for (long n = record % INDEX_INTERVAL; n > 0; n--)
+            offset = nextOffset(offset);
+        return offset;
+    }
+
+    // the offset of the record following the one at offset
+    public long nextOffset(long offset) {
+        Segment segment = segmentFor(offset);
+        int position = (int) (offset - segment.baseOffset);
+        int next = position + HEADER_BYTES + segment.buffer.getInt(position + 4);
+        return next < segment.end ? segment.baseOffset + next : nextSegmentBase(segment);
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    // a new version: one more record
+    @Override
+    public void writeBuffer(ByteBuffer data) {
+        appendRecord(data);
+    }
+
+    // the latest record, empty if there is none
+    @Override
+    public ByteBuffer readBuffer() {
+        long offset = lastOffset;
+        return offset < 0 ? ByteBuffer.allocate(0) : read(offset);
+    }
+
+    @Override
+    public synchronized void force() {
+        active().buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        Segment active = active();
+        active.buffer.force();
+        try (FileChannel channel = FileChannel.open(active.file, StandardOpenOption.WRITE)) {
+            channel.truncate(active.end);
+        }
+    }
+
+    private Segment active() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    private Segment roll(Segment active, int needed) {
+        active.buffer.force();
+        Segment next = newSegment(active.baseOffset + active.end, Math.max(segmentBytes, needed));
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[grown.length - 1] = next;
+        segments = grown;
+        return next;
+    }
+
+    private Segment newSegment(long baseOffset, long size) {
+        try {
+            return map(baseOffset, directory.resolve(String.format("%020d.log", baseOffset)), size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Segment map(long baseOffset, Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(baseOffset, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), 0);
+        }
+    }
+
+    // walks the records of a segment, indexing them; returns the used length
+    private int recover(Segment segment) {
+        int position = 0;
+        int capacity = segment.buffer.capacity();
+        while (position + HEADER_BYTES <= capacity && segment.buffer.getInt(position) == MAGIC) {
+            int length = segment.buffer.getInt(position + 4);
+            if (length < 0 || length > capacity - position - HEADER_BYTES
+                    || segment.buffer.getInt(position + 8) != checksum(segment.buffer, position, length))
+                break; // torn write
+
+            lastOffset = segment.baseOffset + position;
+            indexRecord(lastOffset);
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private void indexRecord(long offset) {
+        if (recordCount % INDEX_INTERVAL == 0) {
+            int slot = (int) (recordCount / INDEX_INTERVAL);
+            if (slot == sparseIndex.length)
+                sparseIndex = Arrays.copyOf(sparseIndex, slot * 2);
+            sparseIndex[slot] = offset;
+        }
+        recordCount++;
+    }
+
+    // CRC32 of the length field and the payload of the record at position
+    private static int checksum(MappedByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(position + 8).position(position + 4);
+        crc.update(covered);
+        covered.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private Segment segmentFor(long offset) {
+        Segment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current[mid].baseOffset <= offset)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        if (offset < 0 || offset < current[low].baseOffset)
+            throw new IllegalArgumentException("No record at offset " + offset);
+        return current[low];
+    }
+
+    private long nextSegmentBase(Segment segment) {
+        Segment[] current = segments;
+        for (int i = 0; i < current.length - 1; i++)
+            if (current[i] == segment)
+                return current[i + 1].baseOffset;
+        throw new IllegalArgumentException("No record after the last one");
+    }
+}
+
+public class SegmentedLogDemo {
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("events");
+        int events = 1_000_000;
+        long[] offsets = new long[events];
+
+        try (SegmentedLogDataSource log = SegmentedLogDataSource.open(directory, 16 * 1024 * 1024)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < events; i++)
+                offsets[i] = log.appendRecord(StandardCharsets.UTF_8.encode("event " + i + " device=TV volume=" + (i % 100)));
+            System.out.println(String.format("Appended %d events in %d ms over %d segments",
+                    events, (System.nanoTime() - start) / 1_000_000, log.getSegmentCount()));
+
+            Random random = new Random(1);
+            start = System.nanoTime();
+            long checksum = 0;
+            for (int i = 0; i < 1_000_000; i++)
+                checksum += log.read(offsets[random.nextInt(events)]).remaining();
+            System.out.println(String.format("1M random reads by offset: %d ms (%d bytes)",
+                    (System.nanoTime() - start) / 1_000_000, checksum));
+            System.out.println("Event 123456: " + StandardCharsets.UTF_8.decode(log.read(log.offsetOf(123_456))));
+            try {
+                log.read(offsets[123_456] + 3);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Inside a record: " + e.getMessage());
+            }
+        }
+
+        // reopening rebuilds the index from the segments
+        try (SegmentedLogDataSource log = SegmentedLogDataSource.open(directory, 16 * 1024 * 1024)) {
+            System.out.println(String.format("Reopened: %d records, last: %s", log.getRecordCount(), log.readData()));
+            System.out.println("Same offset after reopen: " + (log.offsetOf(999_999) == offsets[999_999]));
+
+            // under a decorator, every write is one compressed record
+            DataSource compressed = new CompressionDecorator(log);
+            compressed.writeData("compressed event");
+            System.out.println("Read through CompressionDecorator: " + compressed.readData());
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.javacodestream.designpattern.structural;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Flyweight on top of the Adapter example.
+ *
+ * new SquarePowerPlugAdapter(plug) allocates a wrapper and a RoundPowerPlug for every square plug,
+ * although the only thing that matters for fits() is the width, and there are only a few distinct
+ * widths. Since RoundPowerPlug, SquarePowerPlug and SquarePowerPlugAdapter are immutable, one
+ * adapter per width can be shared by everybody.
+ *
+ * SquarePowerPlugAdapterCache keeps those adapters in an int-keyed open-addressing table:
+ * - the table is immutable and published through a volatile field, so lookups never lock
+ * - a miss creates the adapter under a lock and publishes a copy of the table with the new entry
+ *   (copy-on-write is cheap because the set of widths is small and rarely grows)
+ *
+ * The shared adapter wraps a canonical SquarePowerPlug of that width, not the caller's instance.
+ */
+class SquarePowerPlugAdapterCache {
+
+    private static final class Table {
+        final int[] widths;
+        final SquarePowerPlugAdapter[] adapters; // null means empty slot
+        final int size;
+
+        Table(int capacity, int size) {
+            this.widths = new int[capacity];
+            this.adapters = new SquarePowerPlugAdapter[capacity];
+            this.size = size;
+        }
+
+        SquarePowerPlugAdapter get(int width) {
+            int mask = widths.length - 1;
+            for (int slot = mix(width) & mask; ; slot = (slot + 1) & mask) {
+                SquarePowerPlugAdapter adapter = adapters[slot];
+                if (adapter == null || widths[slot] == width)
+                    return adapter;
+            }
+        }
+
+        void put(int width, SquarePowerPlugAdapter adapter) {
+            int mask = widths.length - 1;
+            int slot = mix(width) & mask;
+            while (adapters[slot] != null)
+                slot = (slot + 1) & mask;
+            widths[slot] = width;
+            adapters[slot] = adapter;
+        }
+    }
+
+    private final Object lock = new Object();
+    private volatile Table table = new Table(16, 0);
+
+    public SquarePowerPlugAdapter adapt(SquarePowerPlug squarePowerPlug) {
+        return forWidth(squarePowerPlug.getWidth());
+    }
+
+    public SquarePowerPlugAdapter forWidth(int width) {
+        SquarePowerPlugAdapter adapter = table.get(width);
+        return adapter != null ? adapter : create(width);
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    private SquarePowerPlugAdapter create(int width) {
+        synchronized (lock) {
+            Table current = table;
+            SquarePowerPlugAdapter adapter = current.get(width);
+            if (adapter != null)
+                return adapter;
+
+            adapter = new SquarePowerPlugAdapter(new SquarePowerPlug(width));
+            // keep the load factor at or below 1/2
+            int capacity = current.widths.length;
+            if ((current.size + 1) * 2 > capacity)
+                capacity *= 2;
+            Table next = new Table(capacity, current.size + 1);
+            for (int slot = 0; slot < current.adapters.length; slot++)
+                if (current.adapters[slot] != null)
+                    next.put(current.widths[slot], current.adapters[slot]);
+            next.put(width, adapter);
+            table = next;
+            return adapter;
+        }
+    }
+
+    private static int mix(int width) {
+        int h = width * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+public class SquarePowerPlugAdapterCacheDemo {
+    public static void main(String[] args) throws InterruptedException {
+        SquarePowerPlugAdapterCache cache = new SquarePowerPlugAdapterCache();
+        RoundSocket roundSocket = new RoundSocket(5);
+
+        SquarePowerPlug squarePowerPlug1 = new SquarePowerPlug(10);
+        SquarePowerPlug squarePowerPlug2 = new SquarePowerPlug(10);
+        System.out.println(String.format("SquarePowerPlug of width: %s -- fits (Using cached Adapter) to RoundSocket of radius (%s) : %s",
+                squarePowerPlug1.getWidth(), roundSocket.radius, roundSocket.fits(cache.adapt(squarePowerPlug1))));
+        System.out.println("Same adapter shared for the same width: "
+                + (cache.adapt(squarePowerPlug1) == cache.adapt(squarePowerPlug2)));
+
+        // many threads adapting plugs of a handful of widths
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1_000_000; i++) {
+                    int width = 2 * ThreadLocalRandom.current().nextInt(1, 33);
+                    roundSocket.fits(cache.forWidth(width));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        System.out.println("Distinct adapters created for 8M plugs: " + cache.size());
+    }
+}